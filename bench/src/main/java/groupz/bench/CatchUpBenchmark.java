@@ -0,0 +1,97 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz.bench;
+
+import groupz.bench.Harness.Member;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for a member that stalled to deliver a backlog of messages.
+ * 
+ * @author jop
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, batchSize=1)
+@Measurement(iterations=10, batchSize=1)
+@Fork(1)
+public class CatchUpBenchmark {
+	@Param({"2", "8", "32", "64"})
+	public int size;
+	
+	@Param({"10000"})
+	public int backlog;
+	
+	@Param({"100"})
+	public int bytes;
+	
+	private Harness group;
+	private Member late;
+	private byte[] data;
+	private long sent;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		group=new Harness(size);
+		late=group.get(size-1);
+		data=new byte[bytes];
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		group.close();
+	}
+	
+	// The late member is stuck on a first message before the backlog is
+	// sent, such that it has to read it all from ZooKeeper
+	@Setup(Level.Invocation)
+	public void stall() throws Exception {
+		late.pause(true);
+		group.get(0).endpoint().send(data);
+		late.awaitStalled();
+		CompletableFuture<Integer> last=null;
+		for(int i=0; i<backlog; i++)
+			last=group.get(0).endpoint().sendAsync(data);
+		last.get();
+		sent+=backlog+1;
+		for(int i=0; i<size-1; i++)
+			group.get(i).awaitDelivered(sent);
+	}
+	
+	@Benchmark
+	public void catchUp() throws Exception {
+		late.pause(false);
+		late.awaitDelivered(sent);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz.bench;
+
+import groupz.Application;
+import groupz.Endpoint;
+import groupz.GroupException;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * A ZooKeeper server running in the same process as the benchmark, and
+ * a group of end-points connected to it, each with its own session.
+ * 
+ * @author jop
+ */
+public class Harness {
+	private File dir;
+	private ZooKeeperServer server;
+	private ServerCnxnFactory factory;
+	private String connect;
+	private String gid;
+	private List<Member> members=new ArrayList<Member>();
+	private boolean direct;
+	
+	static {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+	}
+	
+	/**
+	 * Start a server and a group.
+	 * 
+	 * @param size the initial number of members
+	 */
+	public Harness(int size) throws Exception {
+		this(size, false);
+	}
+	
+	/**
+	 * Start a server and a group.
+	 * 
+	 * @param size the initial number of members
+	 * @param direct whether members push messages to each other over
+	 * loopback connections
+	 */
+	public Harness(int size, boolean direct) throws Exception {
+		this.direct=direct;
+		dir=File.createTempFile("groupz", "zk");
+		dir.delete();
+		dir.mkdirs();
+		server=new ZooKeeperServer(dir, dir, 2000);
+		factory=ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 1000);
+		factory.startup(server);
+		connect="127.0.0.1:"+factory.getLocalPort();
+		gid="bench"+System.nanoTime();
+		
+		for(int i=0; i<size; i++)
+			join();
+	}
+	
+	/**
+	 * Add a member to the group, and wait until all have installed a view
+	 * that includes it.
+	 */
+	public Member join() throws Exception {
+		Member m=new Member();
+		m.ep=new Endpoint(gid, m, connect, 10000);
+		if (direct)
+			m.ep.setDirectTransport(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+		m.ep.join();
+		members.add(m);
+		for(Member o: members)
+			o.awaitView(members.size());
+		return m;
+	}
+	
+	/**
+	 * Remove the last member to join, and wait until all others have
+	 * installed a view without it.
+	 */
+	public void leave() throws Exception {
+		members.remove(members.size()-1).ep.leave();
+		for(Member o: members)
+			o.awaitView(members.size());
+	}
+	
+	public Member get(int i) {
+		return members.get(i);
+	}
+	
+	public int size() {
+		return members.size();
+	}
+	
+	/**
+	 * Wait until all members have delivered some number of messages.
+	 */
+	public void awaitDelivered(long count) throws InterruptedException {
+		for(Member m: members)
+			m.awaitDelivered(count);
+	}
+	
+	public void close() throws Exception {
+		for(Member m: members)
+			m.ep.leave();
+		members.clear();
+		factory.shutdown();
+		server.shutdown();
+		delete(dir);
+	}
+	
+	private static void delete(File f) {
+		File[] children=f.listFiles();
+		if (children!=null)
+			for(File c: children)
+				delete(c);
+		f.delete();
+	}
+	
+	/**
+	 * A group member that counts messages, and can be paused to build up
+	 * a backlog.
+	 */
+	public static class Member implements Application {
+		Endpoint ep;
+		private long delivered;
+		private int members;
+		private boolean paused, stalled;
+		
+		public Endpoint endpoint() {
+			return ep;
+		}
+
+		public synchronized void receive(byte[] data) throws GroupException {
+			while(paused)
+				try {
+					stalled=true;
+					notifyAll();
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			stalled=false;
+			delivered++;
+			notifyAll();
+		}
+		
+		public synchronized void install(int vid, String[] members) {
+			this.members=members==null?0:members.length;
+			notifyAll();
+		}
+
+		public void block() throws GroupException {
+			ep.blockOk();
+		}
+		
+		public synchronized long delivered() {
+			return delivered;
+		}
+		
+		public synchronized void pause(boolean paused) {
+			this.paused=paused;
+			notifyAll();
+		}
+		
+		/**
+		 * Wait until paused while delivering a message.
+		 */
+		public synchronized void awaitStalled() throws InterruptedException {
+			while(!stalled)
+				wait();
+		}
+		
+		public synchronized void awaitDelivered(long count) throws InterruptedException {
+			while(delivered<count)
+				wait();
+		}
+		
+		public synchronized void awaitView(int size) throws InterruptedException {
+			while(members!=size)
+				wait();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from sending a message until it has been delivered by all members.
+ * 
+ * @author jop
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class LatencyBenchmark {
+	@Param({"1", "4", "16", "64"})
+	public int size;
+	
+	@Param({"100"})
+	public int bytes;
+	
+	private Harness group;
+	private byte[] data;
+	private long sent;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		group=new Harness(size);
+		data=new byte[bytes];
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		group.close();
+	}
+	
+	@Benchmark
+	public void sendToDeliver() throws Exception {
+		group.get(0).endpoint().sendAsync(data);
+		group.awaitDelivered(++sent);
+	}
+}
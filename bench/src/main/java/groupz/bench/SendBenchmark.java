@@ -0,0 +1,87 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz.bench;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages sent per second by one member, until they are ordered.
+ * 
+ * @author jop
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SendBenchmark {
+	private static final int PIPELINE=100;
+	
+	@Param({"1", "4", "16", "64"})
+	public int size;
+	
+	@Param({"100"})
+	public int bytes;
+	
+	@Param({"zookeeper", "direct"})
+	public String transport;
+	
+	private Harness group;
+	private byte[] data;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		group=new Harness(size, transport.equals("direct"));
+		data=new byte[bytes];
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		group.close();
+	}
+	
+	@Benchmark
+	public void send() throws Exception {
+		group.get(0).endpoint().send(data);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PIPELINE)
+	public void sendAsync() throws Exception {
+		CompletableFuture<Integer> last=null;
+		for(int i=0; i<PIPELINE; i++)
+			last=group.get(0).endpoint().sendAsync(data);
+		last.get();
+	}
+}
@@ -0,0 +1,69 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for view changes, as seen by the application. Each operation is a
+ * member joining and then leaving, thus two view changes, and completes
+ * when all members have installed the resulting view.
+ * 
+ * @author jop
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ViewChangeBenchmark {
+	@Param({"1", "4", "16", "64"})
+	public int size;
+	
+	private Harness group;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		group=new Harness(size);
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		group.close();
+	}
+	
+	@Benchmark
+	public void joinAndLeave() throws Exception {
+		group.join();
+		group.leave();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sending from application callbacks, which run in the threads that run
+ * the protocol.
+ * 
+ * @author jop
+ */
+public class CallbackSendTest {
+	private File dir;
+	private ServerCnxnFactory factory;
+	private String connect;
+	
+	static {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+	}
+	
+	@Before
+	public void startServer() throws Exception {
+		dir=File.createTempFile("groupz", "zk");
+		dir.delete();
+		dir.mkdirs();
+		factory=ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 1000);
+		factory.startup(new ZooKeeperServer(dir, dir, 2000));
+		connect="127.0.0.1:"+factory.getLocalPort();
+	}
+	
+	@After
+	public void stopServer() {
+		factory.shutdown();
+		delete(dir);
+	}
+	
+	private static void delete(File file) {
+		File[] children=file.listFiles();
+		if (children!=null)
+			for(File child: children)
+				delete(child);
+		file.delete();
+	}
+	
+	// A batch that lingers is flushed by the protocol, which must not
+	// wait for it while a callback is sending
+	@Test(timeout=30000)
+	public void sendFromReceiveWithLinger() throws Exception {
+		final CountDownLatch installed=new CountDownLatch(1), replied=new CountDownLatch(1);
+		final Endpoint[] ep=new Endpoint[1];
+		ep[0]=new Endpoint("callback", new Application() {
+			public void receive(byte[] data) throws GroupException {
+				if (data[0]==0)
+					ep[0].send(new byte[] { 1 });
+				else
+					replied.countDown();
+			}
+			
+			public void install(int vid, String[] members) {
+				installed.countDown();
+			}
+			
+			public void block() throws GroupException {
+				ep[0].blockOk();
+			}
+		}, connect, 10000);
+		ep[0].setBatching(64*1024, 1000);
+		ep[0].join();
+		installed.await();
+		
+		ep[0].sendAsync(new byte[] { 0 });
+		assertTrue(replied.await(20, TimeUnit.SECONDS));
+		ep[0].leave();
+	}
+}
@@ -16,64 +16,221 @@
 
 package groupz;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
+import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
 
 class Acknowledgments implements Watcher {
 	protected Endpoint ep;
 	private String path;
 	
-	private Map<String,Integer> data;
+	private Map<String,Integer> data=new HashMap<String, Integer>();
 	private String me;
+	
+	// Values in the table, with the number of processes with each 
+	private TreeMap<Integer,Integer> values=new TreeMap<Integer, Integer>();
+	private int min=Integer.MAX_VALUE;
+	
+	// Progress in the stream of each member of the view, in the same
+	// order, if reported along with the value
+	private Map<String,int[]> cursors=new HashMap<String, int[]>();
+	
+	// Changes reported by watches, guarded by its own monitor as these
+	// are set from the ZooKeeper event thread
+	private Set<String> changed=new HashSet<String>();
+	private boolean rescan=true;
+	
+	// Local progress not yet published
+	private int target=-1, published=-1;
+	private int[] streams;
+	private boolean moved;
+	private long lastPublished;
+	private volatile KeeperException failure;
+	private volatile boolean lost;
 
-	public Acknowledgments(String path, String me, Endpoint ep) throws KeeperException, InterruptedException {
+	// The directory is created with the view, and read when first needed
+	public Acknowledgments(String path, String me, Endpoint ep) {
 		this.ep=ep;
 		this.path=path;
 		this.me=me;
-
-		try {
-			ep.zk.create(path, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-		} catch(KeeperException.NodeExistsException e) {
-			// don't care
-		}
-		update();
 	}
 
 	@Override
 	public void process(WatchedEvent event) {
-		ep.wakeup();
+		synchronized (changed) {
+			if (event.getType()==EventType.None || event.getPath().equals(path))
+				rescan=true;
+			else
+				changed.add(event.getPath().substring(path.length()+1));
+		}
+		ep.wakeup(Endpoint.Event.ACKNOWLEDGMENT);
 	}
 	
+	// Read only entries for which a watch has been triggered
 	private synchronized void update() throws KeeperException, InterruptedException {
-		Map<String,Integer> newdata=new HashMap<String, Integer>();
-		for(String child: ep.zk.getChildren(path, this)) {
+		Set<String> dirty;
+		boolean scan;
+		synchronized (changed) {
+			dirty=new HashSet<String>(changed);
+			changed.clear();
+			scan=rescan;
+			rescan=false;
+		}
+		if (scan) {
+			Set<String> children=new HashSet<String>(ep.zk.getChildren(path, this));
+			for(String child: new ArrayList<String>(data.keySet()))
+				if (!children.contains(child))
+					put(child, null);
+			for(String child: children)
+				if (!data.containsKey(child))
+					dirty.add(child);
+		}
+		for(String child: dirty) {
 			try {
 				byte[] value=ep.zk.getData(path+"/"+child, this, null);
-				newdata.put(child, Integer.parseInt(new String(value)));
+				String[] parts=new String(value).split(":");
+				put(child, Integer.parseInt(parts[0]));
+				if (parts.length>1) {
+					String[] items=parts[1].split(",");
+					int[] positions=new int[items.length];
+					for(int i=0; i<items.length; i++)
+						positions[i]=Integer.parseInt(items[i]);
+					cursors.put(child, positions);
+				} else
+					cursors.remove(child);
 			} catch (KeeperException.NoNodeException e) {
-				// Ignore this one...
+				put(child, null);
 			}
 		}
-		if (data==null || !data.equals(newdata))
-			data=newdata;
 	}
 	
-	public synchronized void create(int value) throws KeeperException, InterruptedException {
+	private void put(String child, Integer value) {
+		if (value==null)
+			cursors.remove(child);
+		Integer old=value!=null?data.put(child, value):data.remove(child);
+		if (old!=null) {
+			int count=values.get(old);
+			if (count==1)
+				values.remove(old);
+			else
+				values.put(old, count-1);
+		}
+		if (value!=null) {
+			Integer count=values.get(value);
+			values.put(value, count==null?1:count+1);
+		}
+		min=values.isEmpty()?Integer.MAX_VALUE:values.firstKey();
+	}
+	
+	public void create(int value) throws KeeperException, InterruptedException {
 		ep.zk.create(path+"/"+me, Integer.toString(value).getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		created(value);
 	}
 	
-	public synchronized void set(int value) throws KeeperException, InterruptedException {
-		update();
-		if (value<=data.get(me))
-			return;
-		ep.zk.setData(path+"/"+me, Integer.toString(value).getBytes(), -1);		
+	/**
+	 * Operation that creates the local entry, to be batched with others.
+	 * Call created() once it is done.
+	 */
+	public Op createOp(int value) {
+		return Op.create(path+"/"+me, Integer.toString(value).getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+	}
+	
+	public synchronized void created(int value) {
+		target=published=value;
+		lastPublished=System.currentTimeMillis();
+	}
+	
+	/**
+	 * Record local progress, to be published with flush().
+	 */
+	public synchronized void set(int value) {
+		if (value>target)
+			target=value;
+	}
+	
+	/**
+	 * Record local progress, including that in each stream.
+	 */
+	public synchronized void set(int value, int[] positions) {
+		set(value);
+		if (streams==null) {
+			streams=new int[positions.length];
+			Arrays.fill(streams, -1);
+		}
+		for(int i=0; i<positions.length; i++)
+			if (positions[i]>streams[i]) {
+				streams[i]=positions[i];
+				moved=true;
+			}
+	}
+	
+	/**
+	 * Publish local progress, if forced, if the last time was long enough
+	 * ago, or if it is far enough ahead of what has been published. Writes
+	 * are asynchronous, so that successive values can be coalesced.
+	 * 
+	 * @return the time in milliseconds until progress must be published,
+	 * or 0 if there is nothing to publish
+	 */
+	public synchronized long flush(boolean force) throws KeeperException {
+		if (failure!=null)
+			throw failure;
+		if (lost) {
+			lost=false;
+			published=-1;
+		}
+		if (target<=published && !moved)
+			return 0;
+		long delay=lastPublished+ep.ackInterval-System.currentTimeMillis();
+		if (!force && delay>0 && target-published<ep.ackLag)
+			return delay;
+		
+		String value=Integer.toString(target);
+		if (streams!=null) {
+			StringBuilder positions=new StringBuilder();
+			for(int position: streams)
+				positions.append(positions.length()==0?":":",").append(position);
+			value+=positions;
+			cursors.put(me, streams.clone());
+			moved=false;
+		}
+		ep.zk.setData(path+"/"+me, value.getBytes(), -1, new StatCallback() {
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				if (rc==Code.CONNECTIONLOSS.intValue())
+					lost=true;
+				else if (rc!=Code.OK.intValue())
+					failure=KeeperException.create(Code.get(rc), path);
+				else
+					return;
+				ep.wakeup(Endpoint.Event.TIMER);
+			}
+		}, null);
+		put(me, target);
+		published=target;
+		lastPublished=System.currentTimeMillis();
+		return 0;
+	}
+
+	/**
+	 * Operation that removes the local entry, to be batched with others.
+	 */
+	public Op removeOp() {
+		return Op.delete(path+"/"+me, -1);
 	}
 
 	public synchronized void remove() throws InterruptedException, KeeperException {
@@ -86,14 +243,29 @@ class Acknowledgments implements Watcher {
 	
 	public synchronized int get() throws KeeperException, InterruptedException {
 		update();
-		int min=Integer.MAX_VALUE;
-		for(int i: data.values()) {
-			if (i<min)
-				min=i;
-		}
 		return min;
 	}
 	
+	/**
+	 * Get the least progress in the stream of each member. An entry that
+	 * has not reported it holds back all streams, unless it does not
+	 * hold back anything.
+	 */
+	public synchronized int[] getStreams(int count) throws KeeperException, InterruptedException {
+		update();
+		int[] low=new int[count];
+		Arrays.fill(low, Integer.MAX_VALUE);
+		for(Map.Entry<String,Integer> entry: data.entrySet()) {
+			int[] positions=cursors.get(entry.getKey());
+			for(int i=0; i<count; i++)
+				if (positions!=null && i<positions.length)
+					low[i]=Math.min(low[i], positions[i]);
+				else if (entry.getValue()!=Integer.MAX_VALUE)
+					low[i]=-1;
+		}
+		return low;
+	}
+	
 	public synchronized Set<String> processSet() throws KeeperException, InterruptedException {
 		update();
 		return data.keySet();
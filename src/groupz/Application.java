@@ -36,7 +36,7 @@ public interface Application {
 	 * Handle a new view.
 	 * @param vid a monotonically increasing view indentifier
 	 * @param members the current members of the group, or null if the process
-	 * has been excluded
+	 * has been excluded, which must not be modified
 	 * @throws GroupException an exception that might occur while trying to
 	 * perform other group operations
 	 */
@@ -0,0 +1,43 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Application callbacks that receive messages without copying them. 
+ * Messages are delivered as read-only views of the data fetched from
+ * ZooKeeper, which may be kept by the application.
+ * 
+ * @author jop
+ */
+public interface BufferApplication extends Application {
+	/**
+	 * Handle a message.
+	 * @param data read-only view of raw message data, as sent by a process
+	 * @throws GroupException an exception that might occur while trying to
+	 * perform other group operations
+	 */
+	public void receive(ByteBuffer data) throws GroupException;
+	
+	/**
+	 * Handle a message as a buffer. This is never used by an end-point.
+	 */
+	public default void receive(byte[] data) throws GroupException {
+		receive(ByteBuffer.wrap(data).asReadOnlyBuffer());
+	}
+}
@@ -0,0 +1,42 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.io.IOException;
+
+/**
+ * Compression of message payloads. All members of a group must use the
+ * same codec.
+ * 
+ * @author jop
+ */
+public interface Codec {
+	/**
+	 * Compress a message before sending it.
+	 * @param data raw message data
+	 * @return compressed data
+	 */
+	public byte[] encode(byte[] data);
+	
+	/**
+	 * Restore a message before delivering it.
+	 * @param data compressed data
+	 * @return raw message data
+	 * @throws IOException if data is corrupted
+	 */
+	public byte[] decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,88 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+
+/**
+ * Background removal of stable messages. Deletes are issued asynchronously
+ * in batches, with a single batch in flight. As it is driven by ZooKeeper
+ * callbacks, it has its own monitor.
+ */
+class Collector implements MultiCallback {
+	private static final int BATCH=1000;
+
+	private Endpoint ep;
+	private String path;
+
+	private int lastCollected=-1, target=-1;
+	private List<Op> pending;
+
+	public Collector(String path, Endpoint ep) {
+		this.ep=ep;
+		this.path=path;
+	}
+
+	/**
+	 * Remove all messages up to some sequence number.
+	 */
+	public synchronized void collect(int upto) {
+		if (upto>target)
+			target=upto;
+		if (pending==null)
+			next();
+	}
+
+	private void next() {
+		pending=null;
+		if (lastCollected>=target)
+			return;
+		pending=new ArrayList<Op>();
+		for(int id=lastCollected+1; id<=target && pending.size()<BATCH; id++)
+			pending.add(Op.delete(path+"/"+Messages.name(id), -1));
+		ep.zk.multi(pending, this, lastCollected+pending.size());
+	}
+
+	@Override
+	public synchronized void processResult(int rc, String path, Object ctx, List<OpResult> results) {
+		if (rc==Code.OK.intValue()) {
+			lastCollected=(Integer) ctx;
+			next();
+		} else if (rc==Code.NONODE.intValue() && results!=null) {
+			// Skipped sequence numbers, retry without them
+			List<Op> retry=new ArrayList<Op>();
+			for(int i=0; i<pending.size(); i++)
+				if (((OpResult.ErrorResult) results.get(i)).getErr()!=Code.NONODE.intValue())
+					retry.add(pending.get(i));
+			if (retry.isEmpty()) {
+				lastCollected=(Integer) ctx;
+				next();
+			} else {
+				pending=retry;
+				ep.zk.multi(pending, this, ctx);
+			}
+		} else
+			// Lost connection, try again later
+			pending=null;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * ZooKeeper client that survives connection loss. Synchronous operations
+ * wait for the client to reconnect and are then retried, such that the
+ * outcome is the same as if the connection had not been lost. Only
+ * session expiration is reported to the caller.
+ */
+class Connection extends ZooKeeper {
+	private static final long POLL=100;
+
+	private final Object lock=new Object();
+	
+	// Requests issued by each thread, including retries
+	private final ThreadLocal<long[]> issued=new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	public Connection(String connect, int timeout, Watcher watcher) throws IOException {
+		super(connect, timeout, watcher);
+	}
+
+	private void count() {
+		issued.get()[0]++;
+	}
+	
+	/**
+	 * Get how many requests the calling thread has issued, such that
+	 * those of an end-point are told apart from others on the session.
+	 */
+	long issued() {
+		return issued.get()[0];
+	}
+
+	// Reconnection is noticed without waiting for the event thread, as
+	// its callbacks might be waiting for the caller.
+	void await() throws KeeperException, InterruptedException {
+		synchronized (lock) {
+			while(!getState().isConnected()) {
+				if (!getState().isAlive())
+					throw new KeeperException.SessionExpiredException();
+				lock.wait(POLL);
+			}
+		}
+	}
+
+	@Override
+	public String create(String path, byte[] data, List<ACL> acl, CreateMode mode) throws KeeperException, InterruptedException {
+		boolean retry=false;
+		while(true) {
+			count();
+			try {
+				return super.create(path, data, acl, mode);
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+				retry=true;
+			} catch(KeeperException.NodeExistsException e) {
+				// The previous attempt might have succeeded
+				if (retry && mode.isEphemeral() && !mode.isSequential()) {
+					Stat stat=exists(path, false);
+					if (stat!=null && stat.getEphemeralOwner()==getSessionId())
+						return path;
+				}
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public void delete(String path, int version) throws InterruptedException, KeeperException {
+		boolean retry=false;
+		while(true) {
+			count();
+			try {
+				super.delete(path, version);
+				return;
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+				retry=true;
+			} catch(KeeperException.NoNodeException e) {
+				// The previous attempt might have succeeded
+				if (retry)
+					return;
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+		while(true) {
+			count();
+			try {
+				return super.exists(path, watcher);
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+			}
+		}
+	}
+
+	@Override
+	public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+		while(true) {
+			count();
+			try {
+				return super.getData(path, watcher, stat);
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+			}
+		}
+	}
+
+	@Override
+	public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+		while(true) {
+			count();
+			try {
+				return super.getChildren(path, watcher);
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+			}
+		}
+	}
+
+	@Override
+	public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+		while(true) {
+			count();
+			try {
+				return super.setData(path, data, version);
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+			}
+		}
+	}
+
+	@Override
+	public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+		boolean retry=false;
+		while(true) {
+			count();
+			try {
+				return super.multi(ops);
+			} catch(KeeperException.ConnectionLossException e) {
+				await();
+				retry=true;
+			} catch(KeeperException e) {
+				// The previous attempt might have succeeded
+				if (retry && applied(ops))
+					return Collections.emptyList();
+				throw e;
+			}
+		}
+	}
+
+	// Only deletes and creation of ephemeral nodes owned by this session
+	// can be recognized as done
+	private boolean applied(Iterable<Op> ops) throws KeeperException, InterruptedException {
+		for(Op op: ops) {
+			Stat stat=exists(op.getPath(), false);
+			if (op.getType()==OpCode.delete) {
+				if (stat!=null)
+					return false;
+			} else if (op.getType()!=OpCode.create || stat==null || stat.getEphemeralOwner()!=getSessionId())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void create(String path, byte[] data, List<ACL> acl, CreateMode mode, StringCallback cb, Object ctx) {
+		count();
+		super.create(path, data, acl, mode, cb, ctx);
+	}
+
+	@Override
+	public void getData(String path, Watcher watcher, DataCallback cb, Object ctx) {
+		count();
+		super.getData(path, watcher, cb, ctx);
+	}
+
+	@Override
+	public void setData(String path, byte[] data, int version, StatCallback cb, Object ctx) {
+		count();
+		super.setData(path, data, version, cb, ctx);
+	}
+
+	@Override
+	public void multi(Iterable<Op> ops, MultiCallback cb, Object ctx) {
+		count();
+		super.multi(ops, cb, ctx);
+	}
+}
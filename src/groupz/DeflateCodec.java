@@ -0,0 +1,82 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression with the JDK's implementation of deflate.
+ * 
+ * @author jop
+ */
+public class DeflateCodec implements Codec {
+	private int level;
+	
+	/**
+	 * Use the default compression level.
+	 */
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Use a specific compression level.
+	 * @param level from 0 to 9
+	 */
+	public DeflateCodec(int level) {
+		this.level=level;
+	}
+	
+	public byte[] encode(byte[] data) {
+		Deflater deflater=new Deflater(level);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out=new ByteArrayOutputStream(data.length/2+16);
+			byte[] buf=new byte[8192];
+			while(!deflater.finished())
+				out.write(buf, 0, deflater.deflate(buf));
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	public byte[] decode(byte[] data) throws IOException {
+		Inflater inflater=new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream out=new ByteArrayOutputStream(data.length*2);
+			byte[] buf=new byte[8192];
+			while(!inflater.finished()) {
+				int n=inflater.inflate(buf);
+				if (n==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("truncated compressed message");
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} catch(DataFormatException e) {
+			throw new IOException("corrupted compressed message", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
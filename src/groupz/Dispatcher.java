@@ -0,0 +1,240 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+/**
+ * Invocation of application callbacks. By default, callbacks are invoked
+ * directly by the thread running the protocol. With an executor, they are
+ * handed off to one or more lanes, each drained by one task at a time.
+ * Messages with a partition key go to the lane selected by the key, while
+ * other messages and callbacks are barriers that run once all lanes have
+ * reached them, such that all lanes wait for them to complete.
+ */
+class Dispatcher {
+	interface Callback {
+		public void call() throws GroupException;
+	}
+	
+	static final long NONE=-1;
+	
+	private Endpoint ep;
+	private Application app;
+	
+	private Executor executor;
+	private int capacity;
+	private Lane[] lanes;
+	private int queued;
+	private boolean stalled, failed;
+	
+	public Dispatcher(Endpoint ep, Application app) {
+		this.ep=ep;
+		this.app=app;
+	}
+	
+	public synchronized void configure(Executor executor, int capacity, int partitions) {
+		this.executor=executor;
+		this.capacity=capacity;
+		this.lanes=new Lane[partitions];
+		for(int i=0; i<partitions; i++)
+			lanes[i]=new Lane();
+	}
+	
+	/**
+	 * Check whether the application has enough messages to work on. If so,
+	 * the end-point is woken up once it catches up.
+	 */
+	public synchronized boolean full() {
+		if (executor==null || queued<capacity)
+			return false;
+		stalled=true;
+		return true;
+	}
+	
+	/**
+	 * Deliver a message.
+	 * @param key the partition key, or NONE
+	 */
+	public void message(ByteBuffer value, long key) throws GroupException {
+		synchronized (this) {
+			if (executor!=null) {
+				queued++;
+				if (lanes.length==1)
+					lanes[0].add(value);
+				else if (key==NONE)
+					barrier(new Barrier(value, null, true));
+				else
+					lanes[Math.floorMod((int) key, lanes.length)].add(value);
+				return;
+			}
+		}
+		invoke(value);
+	}
+	
+	/**
+	 * Invoke a callback after all messages so far, and before any
+	 * further messages.
+	 */
+	public void callback(Callback cb) throws GroupException {
+		synchronized (this) {
+			if (executor!=null) {
+				barrier(new Barrier(null, cb, true));
+				return;
+			}
+		}
+		cb.call();
+	}
+	
+	/**
+	 * Invoke a callback after all messages so far, without holding back
+	 * further messages. 
+	 */
+	public void progress(Callback cb) throws GroupException {
+		synchronized (this) {
+			if (executor!=null) {
+				barrier(new Barrier(null, cb, false));
+				return;
+			}
+		}
+		cb.call();
+	}
+	
+	private void barrier(Barrier barrier) {
+		for(Lane lane: lanes)
+			lane.add(barrier);
+	}
+	
+	private void invoke(ByteBuffer value) throws GroupException {
+		if (app instanceof BufferApplication)
+			((BufferApplication) app).receive(value);
+		else {
+			byte[] data=new byte[value.remaining()];
+			value.get(data);
+			app.receive(data);
+		}
+	}
+	
+	// Called with the dispatcher monitor held, once the application has
+	// processed a message
+	private void consumed() {
+		queued--;
+		if (stalled && queued<capacity) {
+			stalled=false;
+			ep.wakeup(Endpoint.Event.MESSAGE);
+		}
+	}
+	
+	private static class Barrier {
+		private ByteBuffer value;
+		private Callback cb;
+		private boolean hold;
+		private int arrived;
+		
+		public Barrier(ByteBuffer value, Callback cb, boolean hold) {
+			this.value=value;
+			this.cb=cb;
+			this.hold=hold;
+		}
+	}
+	
+	private class Lane implements Runnable {
+		private Deque<Object> items=new ArrayDeque<Object>();
+		private boolean running, waiting;
+		
+		// Called with the dispatcher monitor held
+		public void add(Object item) {
+			if (failed)
+				return;
+			items.add(item);
+			start();
+		}
+		
+		private void start() {
+			if (running || waiting || items.isEmpty())
+				return;
+			executor.execute(this);
+			running=true;
+		}
+		
+		public void run() {
+			while(true) {
+				ByteBuffer value=null;
+				Barrier barrier=null;
+				boolean counted=false;
+				synchronized (Dispatcher.this) {
+					Object item=items.poll();
+					if (item==null || failed) {
+						running=false;
+						return;
+					}
+					if (item instanceof Barrier) {
+						barrier=(Barrier) item;
+						if (++barrier.arrived<lanes.length) {
+							if (barrier.hold) {
+								waiting=true;
+								running=false;
+								return;
+							}
+							continue;
+						}
+						counted=barrier.value!=null;
+					} else {
+						value=(ByteBuffer) item;
+						counted=true;
+					}
+				}
+				
+				try {
+					if (value!=null)
+						invoke(value);
+					else if (barrier.value!=null)
+						invoke(barrier.value);
+					else
+						barrier.cb.call();
+				} catch(Exception e) {
+					synchronized (Dispatcher.this) {
+						failed=true;
+						for(Lane lane: lanes)
+							lane.items.clear();
+						running=false;
+					}
+					ep.cleanup(e);
+					return;
+				} finally {
+					if (counted)
+						synchronized (Dispatcher.this) {
+							consumed();
+						}
+				}
+				
+				// Release other lanes
+				if (barrier!=null && barrier.hold && lanes.length>1)
+					synchronized (Dispatcher.this) {
+						for(Lane lane: lanes)
+							if (lane.waiting) {
+								lane.waiting=false;
+								lane.start();
+							}
+					}
+			}
+		}
+	}
+}
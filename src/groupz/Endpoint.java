@@ -16,13 +16,29 @@
 
 package groupz;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.ZooDefs.Ids;
 
 /**
@@ -34,7 +50,9 @@ import org.apache.zookeeper.ZooDefs.Ids;
 public class Endpoint {
 	static Logger logger = Logger.getLogger(Endpoint.class);
 	
-	ZooKeeper zk;
+	Connection zk;
+	private Session session;
+	private boolean shared;
 	private static final String root="/vsc";
 	private String path;
 	private String me;
@@ -45,12 +63,50 @@ public class Endpoint {
 	private View current, next;
 	
 	private Messages messages;
-	private boolean awake;
+	// Previous view, until its streams can be removed
+	private Messages retired;
+	// Reused by each round, as delivery is done by one thread at a time
+	private List<ByteBuffer> delivering=new ArrayList<ByteBuffer>();
+	// Last message consumed by the application, which is acknowledged
+	private int lastDelivered=-1;
+	private Dispatcher dispatcher;
+	// Messages delivered in the view, as numbered in the journal
+	private Journal journal;
+	private int journaled;
+	
+	// What a watch has been triggered on, or a timeout
+	enum Event { VIEW, ACKNOWLEDGMENT, MESSAGE, TIMER };
+	private Set<Event> events=EnumSet.noneOf(Event.class);
+	private boolean scheduled;
+	private ScheduledFuture<?> timer;
+	private long deadline;
+	// Separate from the end-point monitor, as it is used by ZooKeeper callbacks
+	private final Object signal=new Object();
 	private Application app;
 	
-	private enum State { CONNECTED, JOINED, BLOCKING, BLOCKED, DISCONNECTED };
+	enum State { CONNECTED, JOINED, BLOCKING, BLOCKED, OBSERVING, DISCONNECTED };
 	private State state;
 	private Exception cause;
+	
+	private Statistics stats=new Statistics();
+	private ObjectName mbean;
+	
+	int batchSize;
+	long batchLinger;
+	int fetchWindow=32;
+	Codec codec;
+	int compressThreshold;
+	int fragmentSize=512*1024;
+	long deliveryBudget;
+	boolean stamping;
+	long ackInterval=100;
+	int ackLag=1000;
+	Ordering ordering=Ordering.TOTAL;
+	int shards=1;
+	long padDelay=10;
+	Transport transport;
+	private InetSocketAddress direct;
+	private long directTimeout;
 
 	/**
 	 * Initialize a group communication end-point.
@@ -60,17 +116,232 @@ public class Endpoint {
 	 * @throws GroupException if a local ZooKeeper server cannot be used
 	 */
 	public Endpoint(String gid, Application cb) throws GroupException {
-		try {
-			this.zk=new ZooKeeper("localhost", 3000, null);
-			this.path=root+"/group/"+gid;
-			this.app=cb;
-			this.state=State.CONNECTED;
-			logger.info("created endpoint on group "+gid);
-		} catch(Exception e) {
-			GroupException ge=new GroupException("cannot connect to ZooKeeper", e);
-			cleanup(ge);
-			throw ge;
-		}
+		this(gid, cb, new Session(1), false);
+	}
+
+	/**
+	 * Initialize a group communication end-point.
+	 * 
+	 * @param gid a group identifier
+	 * @param cb application callbacks
+	 * @param connect a comma separated list of ZooKeeper host:port pairs
+	 * @param timeout the ZooKeeper session timeout in milliseconds
+	 * @throws GroupException if ZooKeeper cannot be used
+	 */
+	public Endpoint(String gid, Application cb, String connect, int timeout) throws GroupException {
+		this(gid, cb, new Session(connect, timeout, 1), false);
+	}
+
+	/**
+	 * Initialize a group communication end-point on a shared session.
+	 * Closing the session removes the process from the group.
+	 * 
+	 * @param gid a group identifier
+	 * @param cb application callbacks
+	 * @param session a ZooKeeper session 
+	 */
+	public Endpoint(String gid, Application cb, Session session) {
+		this(gid, cb, session, true);
+	}
+
+	private Endpoint(String gid, Application cb, Session session, boolean shared) {
+		this.session=session;
+		this.shared=shared;
+		this.zk=session.zk;
+		this.path=root+"/group/"+gid;
+		this.app=cb;
+		this.dispatcher=new Dispatcher(this, cb);
+		this.state=State.CONNECTED;
+		session.add(this);
+		logger.info("created endpoint on group "+gid);
+	}
+
+	/**
+	 * Pack messages sent in a short interval into a single ZooKeeper node.
+	 * This reduces the load on ZooKeeper with many small messages, at the
+	 * expense of latency. Messages in the same batch are assigned the same
+	 * sequence number. By default, each message is sent on its own.
+	 * 
+	 * @param size send a batch as soon as it holds this many bytes
+	 * @param linger maximum time in milliseconds that a message waits for
+	 * the batch to fill up, or 0 to disable batching
+	 */
+	public synchronized void setBatching(int size, long linger) {
+		this.batchSize=size;
+		this.batchLinger=linger;
+		if (messages!=null && linger<=0)
+			messages.flush(true);
+	}
+
+	/**
+	 * Compress large messages before sending them. All members of the
+	 * group must use the same codec. By default, messages are sent as is.
+	 * 
+	 * @param codec the compression codec, or null to disable compression
+	 * @param threshold compress messages with at least this many bytes
+	 */
+	public synchronized void setCompression(Codec codec, int threshold) {
+		this.codec=codec;
+		this.compressThreshold=threshold;
+	}
+
+	/**
+	 * Split messages larger than a ZooKeeper node can hold. Fragments are
+	 * reassembled before delivery, such that messages are still delivered
+	 * atomically and in total order. The default is 512 KB, well below
+	 * ZooKeeper's default limit of 1 MB.
+	 * 
+	 * @param size the maximum number of bytes in a node, including a few
+	 * bytes of headers
+	 * @throws IllegalArgumentException if there is no room for headers
+	 */
+	public synchronized void setFragmentSize(int size) {
+		if (size<=Messages.OVERHEAD)
+			throw new IllegalArgumentException("fragment size must be larger than "+Messages.OVERHEAD);
+		this.fragmentSize=size;
+	}
+
+	/**
+	 * Set how many messages can be requested from ZooKeeper at once
+	 * while catching up. The default is 32.
+	 * 
+	 * @param window the maximum number of outstanding requests
+	 */
+	public synchronized void setFetchWindow(int window) {
+		this.fetchWindow=window;
+	}
+
+	/**
+	 * Deliver messages in chunks that fit a memory budget. Delivery
+	 * progress is then acknowledged after each chunk, and a process that
+	 * is catching up with a long backlog does so in bounded memory. By
+	 * default, all available messages are read at once.
+	 * 
+	 * @param bytes the approximate size of messages read ahead of
+	 * delivery, or 0 for no limit
+	 */
+	public synchronized void setDeliveryBudget(long bytes) {
+		this.deliveryBudget=bytes;
+	}
+
+	/**
+	 * Run application callbacks with an executor, instead of in the
+	 * threads that run the protocol. Callbacks are still invoked one at a
+	 * time and in order. Messages are acknowledged once consumed by the
+	 * application, so that a slow application still holds back view
+	 * changes, but other members and the protocol itself are not. This
+	 * must be set before joining the group.
+	 * 
+	 * @param executor runs application callbacks
+	 * @param capacity how many messages are handed off before waiting
+	 * for the application to consume them
+	 */
+	public synchronized void setCallbackExecutor(Executor executor, int capacity) {
+		dispatcher.configure(executor, capacity, 1);
+	}
+
+	/**
+	 * Run application callbacks with an executor, delivering messages sent
+	 * with a partition key in parallel. Messages with the same key are
+	 * still delivered one at a time and in order, as are those within
+	 * each of the given number of partitions. Messages without a key,
+	 * block and install callbacks wait for all previous messages and hold
+	 * back further messages. Messages are acknowledged once all previous
+	 * messages have been consumed. This must be set before joining the
+	 * group.
+	 * 
+	 * @param executor runs application callbacks, with at least as many
+	 * threads as partitions
+	 * @param capacity how many messages are handed off before waiting
+	 * for the application to consume them
+	 * @param partitions how many messages can be delivered in parallel
+	 */
+	public synchronized void setCallbackExecutor(Executor executor, int capacity, int partitions) {
+		dispatcher.configure(executor, capacity, partitions);
+	}
+
+	/**
+	 * Stamp messages with the time at which they are sent, such that
+	 * receivers measure the delay until delivery. This assumes that the
+	 * clocks of group members are synchronized.
+	 * 
+	 * @param enabled whether to stamp messages sent
+	 * @see Metrics#getDeliveryLatencyMean()
+	 */
+	public synchronized void setLatencyStamping(boolean enabled) {
+		this.stamping=enabled;
+	}
+
+	/**
+	 * Set how often delivery progress is published to other members. This
+	 * allows stable messages to be collected. Progress is published
+	 * right away while a new view is being installed. The default is
+	 * every 100 ms or every 1000 messages.
+	 * 
+	 * @param interval the minimum time in milliseconds between updates
+	 * @param lag publish anyway when this many messages behind
+	 */
+	public synchronized void setAckPublishing(long interval, int lag) {
+		this.ackInterval=interval;
+		this.ackLag=lag;
+	}
+
+	/**
+	 * Record delivered messages and installed views in a local journal,
+	 * which can be read back later. The journal is forced to disk as
+	 * configured, in the threads that run the protocol, and is not closed
+	 * by the end-point. This must be set before joining the group.
+	 * 
+	 * @param journal an open journal
+	 */
+	public synchronized void setJournal(Journal journal) {
+		this.journal=journal;
+	}
+
+	/**
+	 * Set the delivery order of messages sent without specifying one.
+	 * The default is total order.
+	 * 
+	 * @param order the default delivery order
+	 */
+	public synchronized void setOrdering(Ordering order) {
+		this.ordering=order;
+	}
+
+	/**
+	 * Spread messages over several ZooKeeper directories, instead of a
+	 * single one. Each member sends to one of them, and all members merge
+	 * them in the same total order, taking one node from each in turn.
+	 * When some directory falls behind others for a while, it is filled
+	 * with empty nodes, which adds that much latency when the group is
+	 * lightly loaded. All members of the group must use the same setting,
+	 * and it must be set before joining the group.
+	 * 
+	 * @param shards the number of directories, 1 by default
+	 * @param delay how long in milliseconds a directory can be behind
+	 * before it is filled
+	 */
+	public synchronized void setSharding(int shards, long delay) {
+		this.shards=shards;
+		this.padDelay=delay;
+	}
+
+	/**
+	 * Push messages directly to other members over TCP, such that only
+	 * a short token for each batch is ordered through ZooKeeper. The
+	 * token is written once all members have the batch, so that it can
+	 * be delivered even if the sender fails. Batches go through ZooKeeper
+	 * as usual if some member cannot be reached or does not confirm it in
+	 * time. This must be set before joining the group.
+	 * 
+	 * @param address where other members connect to this process, which
+	 * is published as is, with port 0 for any free port
+	 * @param timeout how long in milliseconds to wait for members to
+	 * confirm a batch
+	 */
+	public synchronized void setDirectTransport(InetSocketAddress address, long timeout) {
+		this.direct=address;
+		this.directTimeout=timeout;
 	}
 
 	/* -- Main VSC state-machine */
@@ -78,7 +349,7 @@ public class Endpoint {
 	// Pre-condition for start changing a view
 	private boolean readyToBlock() throws KeeperException, InterruptedException {
 		return state==State.JOINED && oldblocked.processSet().isEmpty() &&
-			(active.processSet().size()<current.getProcesses().size() || !blocked.processSet().isEmpty());
+			(active.processSet().size()<current.getProcesses().length || !blocked.processSet().isEmpty());
 	}
 		
 	// Output action to start changing a view
@@ -86,13 +357,17 @@ public class Endpoint {
 		synchronized (this) {
 			if (!readyToBlock()) return;
 			
-			state = State.BLOCKING;
+			enter(State.BLOCKING);
 
 			logger.info("leaving view "+vid);
 		}
 		
 		// Callback out of synchronized!
-		app.block();
+		dispatcher.callback(new Dispatcher.Callback() {
+			public void call() throws GroupException {
+				app.block();
+			}
+		});
 	}
 	
 	/**
@@ -106,11 +381,13 @@ public class Endpoint {
 		onEntry(State.BLOCKING);
 
 		try {
-			state = State.BLOCKED;
-			blocked.create(messages.getLastReceived());
-			active.remove();
+			enter(State.BLOCKED);
+			messages.flush(true);
+			messages.drain();
+			zk.multi(Arrays.asList(blocked.createOp(lastDelivered), active.removeOp()));
+			blocked.created(lastDelivered);
 				
-			next = new View(path+"/"+(vid+1), this);
+			next = new View(path+"/"+(vid+1), current, this);
 
 			logger.info("blocked on view "+vid);
 		} catch(KeeperException e) {
@@ -121,25 +398,31 @@ public class Endpoint {
 	}
 
 	// Pre-condition for installing a new view
-	private boolean readyToInstall() throws KeeperException, InterruptedException {
+	private boolean readyToInstall() throws KeeperException, InterruptedException, GroupException {
 		return state==State.BLOCKED && active.processSet().isEmpty() &&
 			// A new process can only propose to change a dead view
 			((messages==null && getLastStableMessage()==Integer.MAX_VALUE) ||
 					
 			// If I was in the view, I know how many messages have been sent
-			 (messages!=null && getLastStableMessage()>=messages.getLastSent()));
+			 (messages!=null && getLastStableMessage()>=messages.getLastSent() && messages.isComplete()));
 	}
 	
 	// Output action for installing a view
 	private void install() throws KeeperException, InterruptedException, GroupException {
 		String[] names=null; 
+		String donor=null;
+		boolean giving=false, taking=false;
 
 		synchronized (this) {
 			if (!readyToInstall()) return;
 			
 			// Garbage collect and verify view-synchrony
-			if (messages!=null && !messages.receiveAndGC(getLastStableMessage()).isEmpty())
-				throw new GroupException("there is a bug somewhere", null);
+			if (messages!=null) {
+				if (!messages.receive(delivering).isEmpty())
+					throw new GroupException("there is a bug somewhere", null);
+				if (isCollector())
+					messages.collect(getLastStableMessage());
+			}
 
 			List<String> prop=new ArrayList<String>();
 			// Respect order in previous view
@@ -148,37 +431,102 @@ public class Endpoint {
 					prop.add(s);
 			// Arriving processes in any order
 			for(String s: blocked.processSet())
-				if (!current.getProcesses().contains(s))
+				if (!current.contains(s))
 					prop.add(s);
 			
 			next.propose(prop);		
 			
 			vid ++;
+			notifyAll();
 
 			oldblocked=blocked;
 
 			active = new Acknowledgments(path+"/"+vid+"/active", me, this);
 			blocked = new Acknowledgments(path+"/"+vid+"/blocked", me, this);
 			
-			if (next.getProcesses().contains(me)) {
+			if (next.contains(me)) {
+				// State is given to new members by the first one that remains
+				List<String> joining=new ArrayList<String>();
+				for(String s: next.getProcesses())
+					if (!current.contains(s))
+						joining.add(s);
+					else if (donor==null)
+						donor=s;
+				if (!joining.isEmpty() && donor!=null) {
+					giving=donor.equals(me);
+					taking=!current.contains(me) && app instanceof StatefulApplication;
+				}
+				
 				current = next;
 				next = null;
-				messages = new Messages(path+"/"+vid, me, this);
-				active.create(-1);
-				state = State.JOINED;
+				if (transport!=null) {
+					transport.resolve(root+"/process", current.getProcesses());
+					transport.discard(vid);
+				}
+				retired = messages;
+				messages = new Messages(path, vid, current.getProcesses(), me, this);
+				if (!joining.isEmpty() && donor!=null)
+					messages.transfer(joining);
+				lastDelivered = -1;
+				zk.multi(Arrays.asList(active.createOp(-1), oldblocked.removeOp()));
+				active.created(-1);
+				enter(State.JOINED);
 				names = getCurrentView();
+				if (journal!=null) {
+					journaled = 0;
+					try {
+						journal.install(vid, names);
+					} catch(IOException e) {
+						throw new GroupException("cannot write journal", e);
+					}
+				}
+				// Directories of the new view are read in the next round
+				wakeup(Event.ACKNOWLEDGMENT);
 			} else {
 				messages = null;
+				oldblocked.remove();
 				cleanup(null);
 			}
-
-			oldblocked.remove();
 		
 			logger.info("installing view "+vid);
 		}
 		
 		// Call install out of synchronized
-		app.install(vid, names);
+		final int view=vid;
+		final String[] members=names;
+		dispatcher.callback(new Dispatcher.Callback() {
+			public void call() throws GroupException {
+				app.install(view, members);
+			}
+		});
+		
+		if (giving || taking)
+			transfer(root+"/process/"+donor, path+"/"+view, giving);
+	}
+	
+	// Write or read state right after the install callback, and before
+	// any message in the view
+	private void transfer(final String donor, final String viewPath, final boolean giving) throws GroupException {
+		dispatcher.callback(new Dispatcher.Callback() {
+			public void call() throws GroupException {
+				try {
+					if (giving) {
+						Snapshot.Writer out=new Snapshot.Writer(viewPath+"/state", Endpoint.this);
+						if (app instanceof StatefulApplication)
+							((StatefulApplication) app).getState(out);
+						out.close();
+					} else {
+						Snapshot.Reader in=new Snapshot.Reader(viewPath+"/state", donor, viewPath+"/taken/"+me, Endpoint.this);
+						((StatefulApplication) app).setState(in);
+						in.close();
+					}
+				} catch(GroupException e) {
+					throw e;
+				} catch(IOException e) {
+					throw new GroupException("cannot transfer state", e);
+				}
+			}
+		});
 	}
 		
 	/* -- Joining and leaving a group */
@@ -192,7 +540,8 @@ public class Endpoint {
 	}
 	
 	private void findPid() throws KeeperException, InterruptedException {
-		String[] path = zk.create(root+"/process/", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL).split("/");
+		byte[] address=transport!=null?transport.getAddress():new byte[0];
+		String[] path = zk.create(root+"/process/", address, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL).split("/");
 		me = path[path.length-1];
 		logger.info("my process id is "+me);
 	}
@@ -205,6 +554,10 @@ public class Endpoint {
 		createPath(root+"/process");
 		createPath(path);
 		createPath(path+"/0");
+		for(String dir: View.DIRECTORIES)
+			createPath(path+"/0/"+dir);
+		for(String dir: Messages.directories(shards))
+			createPath(path+"/0/"+dir);
 
 		logger.info("new group created");
 	}
@@ -238,24 +591,22 @@ public class Endpoint {
 			if (vid<0)
 				boot();
 			
+			if (direct!=null)
+				transport=new Transport(direct, directTimeout, this);
 			findPid();
 
-			current = new View(path+"/"+vid, this);
+			current = new View(path+"/"+vid, null, this);
 			blocked = new Acknowledgments(path+"/"+vid+"/blocked", me, this);
 			active = new Acknowledgments(path+"/"+vid+"/active", me, this);
-			next = new View(path+"/"+(vid+1), this);
+			next = new View(path+"/"+(vid+1), current, this);
 
 			blocked.create(Integer.MAX_VALUE);
 			
-			state=State.BLOCKED;
+			enter(State.BLOCKED);
+			wakeup(Event.ACKNOWLEDGMENT);
 				
 			logger.info("joining group");
 
-			new Thread(new Runnable() {
-				public void run() {
-					loop();
-				}
-			}).start();
 			while(vid<=targetvid && state!=State.DISCONNECTED)
 				wait();
 		} catch(Exception e) {
@@ -264,6 +615,62 @@ public class Endpoint {
 
 		if (state==State.DISCONNECTED)
 			throw new GroupException("failed to join", cause);
+		
+		register(me);
+	}
+
+	/**
+	 * Follow the group without joining it. The end-point is not a member
+	 * of any view and never holds back members, thus it cannot send, but
+	 * otherwise gets views and messages as members do, starting with the
+	 * current view and with messages sent after this is called. Block
+	 * callbacks are not invoked. Messages removed while the observer is
+	 * behind, as well as those pushed only to members by the direct
+	 * transport, are skipped and reported to an ObserverApplication.
+	 * This blocks the calling thread until the current view is installed.
+	 * 
+	 * @throws GroupException if the end-point is not freshly created, or
+	 * the group does not exist
+	 */
+	public synchronized void observe() throws GroupException {
+		onEntry(State.CONNECTED);
+		
+		if (findView()<0) {
+			GroupException e=new GroupException("no such group", null);
+			cleanup(e);
+			throw e;
+		}
+		
+		try {
+			// Installed as if it was the next view, in the first round
+			next = new View(path+"/"+vid, null, this);
+			vid--;
+			
+			enter(State.OBSERVING);
+			wakeup(Event.VIEW);
+			
+			logger.info("observing group");
+			
+			while(current==null && state!=State.DISCONNECTED)
+				wait();
+		} catch(Exception e) {
+			onExit(e);
+		}
+		
+		if (state==State.DISCONNECTED)
+			throw new GroupException("failed to observe", cause);
+		
+		register("observer-"+Long.toHexString(zk.getSessionId()));
+	}
+	
+	private void register(String process) {
+		try {
+			mbean=new ObjectName("groupz:type=Endpoint,group="+ObjectName.quote(path.substring(path.lastIndexOf('/')+1))+",process="+process);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(stats, Metrics.class), mbean);
+		} catch(Exception e) {
+			logger.warn("cannot register metrics", e);
+			mbean=null;
+		}
 	}
 
 	/**
@@ -281,6 +688,34 @@ public class Endpoint {
 		return lowa<lowb?lowa:lowb;
 	}
 
+	// Messages in streams delivered by all members, which have all
+	// installed the view
+	private int[] getStableStreams() throws KeeperException, InterruptedException {
+		int count=current.getProcesses().length;
+		int[] low=active.getStreams(count), lowb=blocked.getStreams(count);
+		for(int i=0; i<count; i++)
+			low[i]=Math.min(low[i], lowb[i]);
+		return low;
+	}
+
+	// Stable messages are removed by the first process in the view that
+	// is still around
+	private boolean isCollector() throws KeeperException, InterruptedException {
+		for(String s: current.getProcesses())
+			if (active.processSet().contains(s) || blocked.processSet().contains(s))
+				return s.equals(me);
+		return false;
+	}
+
+	// All members have installed the current view, and thus received
+	// every message from the previous one
+	private boolean installed() throws KeeperException, InterruptedException {
+		for(String s: current.getProcesses())
+			if (!active.processSet().contains(s) && !blocked.processSet().contains(s))
+				return false;
+		return true;
+	}
+
 	// Pre-condition for delivering messages
 	private boolean readyToDeliver() {
 		return (state==State.JOINED || state==State.BLOCKING || state==State.BLOCKED) &&
@@ -289,48 +724,350 @@ public class Endpoint {
 	
 	// Action for delivering messages
 	private void deliver() throws KeeperException, InterruptedException, GroupException {
-		List<byte[]> values;
+		if (dispatcher.full())
+			return;
 		
+		final Messages received;
+		final int last;
+		final int[] positions;
+		boolean advanced;
 		synchronized (this) {
 			if (!readyToDeliver()) return;
 			
-			values=messages.receiveAndGC(getLastStableMessage());
+			received=messages;
+			// Once all have blocked, no more messages will be sent
+			if (next!=null && active.processSet().isEmpty())
+				received.end();
+			int before=received.getLastReceived();
+			received.receive(delivering);
+			last=received.getLastReceived();
+			positions=received.getStreams();
+			advanced=last>before || !delivering.isEmpty();
+			journal();
+			int stable=getLastStableMessage();
+			if (isCollector()) {
+				received.collect(stable);
+				received.release();
+				if (installed()) {
+					received.collect(getStableStreams());
+					if (retired!=null) {
+						retired.retire();
+						retired=null;
+					}
+				}
+			}
+			stats.lag(received.getLastKnown()-last, stable<lastDelivered?lastDelivered-stable:0);
 		}
 
-		if (values.size()>0)
-			logger.debug("delivering "+values.size()+" messages");
+		if (delivering.size()>0) {
+			logger.debug("delivering "+delivering.size()+" messages");
+			// Installing a view might be waiting only for these
+			if (state==State.BLOCKED)
+				wakeup(Event.ACKNOWLEDGMENT);
+		}
 
-		for(byte[] value: values)
-			app.receive(value);
+		dispatch(received);
+		
+		if (advanced)
+			dispatcher.progress(new Dispatcher.Callback() {
+				public void call() throws GroupException {
+					acknowledge(received, last, positions);
+				}
+			});
+	}
+	
+	// Record messages about to be delivered, within the current view
+	private void journal() throws GroupException {
+		if (journal!=null)
+			try {
+				for(ByteBuffer value: delivering)
+					journal.receive(vid, journaled++, value);
+			} catch(IOException e) {
+				throw new GroupException("cannot write journal", e);
+			}
+	}
+	
+	private void dispatch(Messages received) throws GroupException {
+		try {
+			long now=System.currentTimeMillis();
+			for(int i=0; i<delivering.size(); i++) {
+				ByteBuffer value=delivering.get(i);
+				stats.delivered.increment();
+				stats.deliveredBytes.add(value.remaining());
+				if (received.getStamp(i)>0)
+					stats.deliveryLatency.record((now-received.getStamp(i))*1000);
+				dispatcher.message(value, received.getKey(i));
+			}
+		} finally {
+			delivering.clear();
+		}
+	}
+	
+	// Action for observing the group, which takes messages as they are
+	// read, and moves on to the next view once it is decided, as then
+	// all members have blocked, and the rest of the messages are read
+	private void follow() throws KeeperException, InterruptedException, GroupException {
+		if (dispatcher.full())
+			return;
 		
+		final Messages received;
+		final int view;
+		String[] names=null;
+		int missed=0;
 		synchronized (this) {
-			if (next==null)
-				active.set(messages.getLastReceived());
-			else
-				blocked.set(messages.getLastReceived());
+			if (state!=State.OBSERVING) return;
+			
+			received=messages;
+			view=vid;
+			boolean ended=next.isDecided() && (received==null || received.finish());
+			if (received!=null) {
+				received.receive(delivering);
+				journal();
+				missed=received.getMissed();
+				stats.lag(received.getLastKnown()-received.getLastReceived(), 0);
+			}
+			
+			if (ended) {
+				vid++;
+				current=next;
+				next=new View(path+"/"+(vid+1), current, this);
+				messages=new Messages(path, vid, current.getProcesses(), null, this);
+				// Joined in the middle of the view
+				if (received==null)
+					messages.skip();
+				enter(State.OBSERVING);
+				names=getCurrentView();
+				if (journal!=null) {
+					journaled = 0;
+					try {
+						journal.install(vid, names);
+					} catch(IOException e) {
+						throw new GroupException("cannot write journal", e);
+					}
+				}
+				notifyAll();
+				wakeup(Event.MESSAGE);
+				
+				logger.info("observing view "+vid);
+			} else if (next.isDecided())
+				// Held back by the delivery budget
+				wakeup(Event.MESSAGE);
+		}
+		
+		if (received!=null)
+			dispatch(received);
+		
+		if (missed>0) {
+			logger.warn("missed "+missed+" batches in view "+view);
+			stats.missed.add(missed);
+			final int count=missed;
+			if (app instanceof ObserverApplication)
+				dispatcher.callback(new Dispatcher.Callback() {
+					public void call() throws GroupException {
+						((ObserverApplication) app).missed(view, count);
+					}
+				});
+		}
+		
+		if (names!=null) {
+			final int installed=view+1;
+			final String[] members=names;
+			dispatcher.callback(new Dispatcher.Callback() {
+				public void call() throws GroupException {
+					app.install(installed, members);
+				}
+			});
+		}
+	}
+	
+	// Report messages consumed by the application, unless a new view has
+	// been installed since they were received
+	private synchronized void acknowledge(Messages received, int last, int[] positions) throws GroupException {
+		if (state==State.DISCONNECTED || received!=messages)
+			return;
+		// Streams might have moved on even if this did not
+		if (last>lastDelivered)
+			lastDelivered=last;
+		try {
+			if (next==null) {
+				active.set(lastDelivered, positions);
+				active.flush(false);
+			} else {
+				blocked.set(lastDelivered, positions);
+				blocked.flush(true);
+			}
+		} catch(KeeperException e) {
+			onExit(e);
 		}
 	}
 	
 	/**
 	 * Send a message. This cannot be invoked after blockOk() has been called
-	 * until a new view is installed.
+	 * until a new view is installed. The calling thread waits until the
+	 * message has been ordered, use sendAsync() to avoid it.
 	 * 
 	 * @throws GroupException if the end-point is not freshly created.
 	 */
-	public synchronized void send(byte[] data) throws GroupException {
-		onEntry(State.JOINED, State.BLOCKING);
-		
+	public void send(byte[] data) throws GroupException {
+		send(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Send the remaining bytes of a buffer as a message. The buffer is
+	 * not modified and can be reused as soon as this method returns.
+	 * 
+	 * @throws GroupException if the end-point is not freshly created.
+	 */
+	public void send(ByteBuffer data) throws GroupException {
+		send(data, Dispatcher.NONE, ordering);
+	}
+	
+	/**
+	 * Send a message without waiting for it to be ordered. Messages sent
+	 * by the same process, either with send() or sendAsync(), are delivered
+	 * in the order in which these methods have been called. This cannot
+	 * be invoked after blockOk() has been called until a new view is
+	 * installed.
+	 * 
+	 * @param data raw message data
+	 * @return a future completed with the sequence number assigned to the
+	 * message within the current view, or failed with GroupException if the
+	 * process has been removed from the group
+	 * @throws GroupException if no view is installed or blocked
+	 */
+	public CompletableFuture<Integer> sendAsync(byte[] data) throws GroupException {
+		return sendAsync(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Send the remaining bytes of a buffer as a message, without waiting
+	 * for it to be ordered. The buffer, which can be direct, is not
+	 * modified and can be reused as soon as this method returns.
+	 * 
+	 * @param data raw message data
+	 * @return a future completed with the sequence number assigned to the
+	 * message within the current view, or failed with GroupException if the
+	 * process has been removed from the group
+	 * @throws GroupException if no view is installed or blocked
+	 */
+	public CompletableFuture<Integer> sendAsync(ByteBuffer data) throws GroupException {
+		return sendAsync(data, Dispatcher.NONE, ordering);
+	}
+	
+	/**
+	 * Send a message with a given delivery order.
+	 * 
+	 * @param data raw message data
+	 * @param order the delivery order
+	 * @throws GroupException if the end-point is not freshly created.
+	 */
+	public void send(ByteBuffer data, Ordering order) throws GroupException {
+		send(data, Dispatcher.NONE, order);
+	}
+	
+	/**
+	 * Send a message with a given delivery order, without waiting for it
+	 * to be ordered. Messages in FIFO order are delivered in the order in
+	 * which they were sent with respect to other FIFO messages from the
+	 * same process only.
+	 * 
+	 * @param data raw message data
+	 * @param order the delivery order
+	 * @return a future completed with the sequence number assigned to the
+	 * message within the current view, or within those sent by this
+	 * process in FIFO order, or failed with GroupException if the process
+	 * has been removed from the group
+	 * @throws GroupException if no view is installed or blocked
+	 */
+	public CompletableFuture<Integer> sendAsync(ByteBuffer data, Ordering order) throws GroupException {
+		return sendAsync(data, Dispatcher.NONE, order);
+	}
+	
+	/**
+	 * Send a message with a partition key. Messages are totally ordered
+	 * as usual, but if delivered in parallel, those with different keys
+	 * might be processed concurrently.
+	 * 
+	 * @param key the partition key
+	 * @param data raw message data
+	 * @throws GroupException if the end-point is not freshly created.
+	 * @see #setCallbackExecutor(Executor, int, int)
+	 */
+	public void send(int key, ByteBuffer data) throws GroupException {
+		send(data, key&0xffffffffL, ordering);
+	}
+	
+	/**
+	 * Send a message with a partition key, without waiting for it to be
+	 * ordered.
+	 * 
+	 * @param key the partition key
+	 * @param data raw message data
+	 * @return a future completed with the sequence number assigned to the
+	 * message within the current view, or failed with GroupException if the
+	 * process has been removed from the group
+	 * @throws GroupException if no view is installed or blocked
+	 * @see #setCallbackExecutor(Executor, int, int)
+	 */
+	public CompletableFuture<Integer> sendAsync(int key, ByteBuffer data) throws GroupException {
+		return sendAsync(data, key&0xffffffffL, ordering);
+	}
+	
+	// The batch is sent right away, as the caller waits for it anyway and
+	// might be a callback in the thread that would otherwise flush it
+	private void send(ByteBuffer data, long key, Ordering order) throws GroupException {
 		try {
-			messages.send(data);
-		} catch (KeeperException e) {
-			onExit(e);
+			CompletableFuture<Integer> result;
+			synchronized (this) {
+				result=sendAsync(data, key, order);
+				messages.flush(true);
+			}
+			result.get();
+		} catch (ExecutionException e) {
+			throw (GroupException) e.getCause();
 		} catch (InterruptedException e) {
 			onExit(e);
 		}
 	}
 	
+	private synchronized CompletableFuture<Integer> sendAsync(ByteBuffer data, long key, Ordering order) throws GroupException {
+		onEntry(State.JOINED, State.BLOCKING);
+		
+		stats.sent.increment();
+		stats.sentBytes.add(data.remaining());
+		final long start=System.nanoTime();
+		
+		final CompletableFuture<Integer> result=new CompletableFuture<Integer>();
+		// Don't run application code in the ZooKeeper event thread
+		messages.send(data, key, order).whenCompleteAsync(new BiConsumer<Integer, Throwable>() {
+			public void accept(Integer seq, Throwable e) {
+				if (e==null) {
+					stats.sendLatency.record((System.nanoTime()-start)/1000);
+					result.complete(seq);
+				} else {
+					cleanup((Exception) e);
+					result.completeExceptionally(new GroupException("disconnected on internal error", e));
+				}
+			}
+		});
+		
+		// Time the flush of a new batch
+		if (batchLinger>0)
+			wakeup(Event.TIMER);
+		return result;
+	}
+	
 	/* -- The rest of the public API -- */
 	
+	/**
+	 * Get statistics of this end-point.
+	 * 
+	 * @return current statistics
+	 */
+	public Metrics getMetrics() {
+		return stats;
+	}
+	
 	/**
 	 * Get a unique identifier of the local process.
 	 * 
@@ -346,13 +1083,14 @@ public class Endpoint {
 	 * Get the current composition of the view. This is guaranteed to 
 	 * be exactly the same in all members.
 	 * 
-	 * @return the list of group members
+	 * @return the list of group members, which is shared and must not be
+	 * modified
 	 * @throws GroupException if no view is installed
 	 */
 	public synchronized String[] getCurrentView() throws GroupException {
-		onEntry(State.JOINED, State.BLOCKING, State.BLOCKED);
+		onEntry(State.JOINED, State.BLOCKING, State.BLOCKED, State.OBSERVING);
 		try {
-			return current.getProcesses().toArray(new String[current.getProcesses().size()]);
+			return current.getProcesses();
 		} catch(Exception e) {
 			onExit(e);
 			return null; // never happens, onExit always throws
@@ -376,53 +1114,176 @@ public class Endpoint {
 		throw e;
 	}
 
+	private void enter(State next) {
+		state=next;
+		stats.enter(next, vid);
+	}
+
 	private void onExit(Exception e) throws GroupException  {
 		cleanup(e);
 		throw new GroupException("disconnected on internal error", e);
 	}
 
-	private synchronized void cleanup(Exception cause) {
+	synchronized void cleanup(Exception cause) {
 		if (state==State.DISCONNECTED)
 			return;
 		this.cause=cause;
-		state=State.DISCONNECTED;
+		enter(State.DISCONNECTED);
 		if (cause!=null)
 			logger.error("detached from group on error", cause);
 		else
 			logger.info("detached from group on leave");
-		try {
-			zk.close();
-		} catch (InterruptedException e) {
-			// don't care
+		if (messages!=null)
+			messages.flush(true);
+		if (transport!=null)
+			transport.close();
+		if (journal!=null)
+			try {
+				journal.sync(true);
+			} catch(IOException e) {
+				logger.error("cannot write journal", e);
+			}
+		if (mbean!=null)
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+			} catch(Exception e) {
+				// already gone
+			}
+		synchronized (signal) {
+			if (timer!=null)
+				timer.cancel(false);
 		}
-		wakeup();
+		session.remove(this);
+		if (!shared)
+			session.close();
+		else {
+			// Other groups keep the session, so nodes must be removed
+			try {
+				if (active!=null)
+					active.remove();
+				if (blocked!=null)
+					blocked.remove();
+				if (oldblocked!=null)
+					oldblocked.remove();
+				if (me!=null)
+					zk.delete(root+"/process/"+me, -1);
+			} catch (Exception e) {
+				logger.error("cannot remove process from group", e);
+			}
+		}
+		notifyAll();
 	}
 		
 	/* -- State-machine main loop -- */
 	
-	private void loop() {
+	private final Runnable round=new Runnable() {
+		public void run() {
+			step();
+		}
+	};
+	
+	private final Runnable tick=new Runnable() {
+		public void run() {
+			wakeup(Event.TIMER);
+		}
+	};
+	
+	private void step() {
+		Set<Event> ready;
+		synchronized (signal) {
+			ready=events;
+			events=EnumSet.noneOf(Event.class);
+		}
+		long ops=zk.issued();
+		
 		try {
-			while(true) {
-				synchronized (this) {
-					while(!awake && state!=State.DISCONNECTED)
-						wait();
-					if (state==State.DISCONNECTED)
-						break;
-					awake=false;
-				}
-				
-				// This order should not matter for correctness
+			if (!zk.getState().isAlive())
+				throw new KeeperException.SessionExpiredException();
+			
+			// This order should not matter for correctness, but each
+			// step is only tried when the event can make it ready
+			if (ready.contains(Event.ACKNOWLEDGMENT))
 				block();
+			if (ready.contains(Event.ACKNOWLEDGMENT) || ready.contains(Event.VIEW))
 				install();
+			if (ready.contains(Event.ACKNOWLEDGMENT) || ready.contains(Event.MESSAGE))
 				deliver();
+			if (ready.contains(Event.VIEW) || ready.contains(Event.MESSAGE))
+				follow();
+			
+			long delay;
+			synchronized (this) {
+				if (state==State.DISCONNECTED)
+					return;
+				delay=messages!=null?messages.flush(false):0;
+				if (messages!=null && shards>1 && (state==State.JOINED || state==State.BLOCKING) && isCollector())
+					delay=earliest(delay, messages.pad());
+				// The entry is removed when blocking, along with any
+				// progress not yet published
+				if (active!=null && next==null)
+					delay=earliest(delay, active.flush(false));
+				// Resend progress lost with the connection, as installing
+				// waits for it
+				if (blocked!=null && next!=null)
+					blocked.flush(true);
+				if (journal!=null)
+					delay=earliest(delay, journal.sync(false));
 			}
+			if (delay>0)
+				setTimer(delay);
 		} catch(Exception e) {
 			cleanup(e);
+		} finally {
+			stats.rounds.increment();
+			stats.operations.add(zk.issued()-ops);
+			synchronized (signal) {
+				scheduled=false;
+				if (!events.isEmpty())
+					schedule();
+			}
 		}
 	}
 
-	synchronized void wakeup() {
-		awake=true;
-		notifyAll();
+	// Run a round on the session thread pool, one at a time
+	private void schedule() {
+		if (scheduled)
+			return;
+		try {
+			session.executor.execute(round);
+			scheduled=true;
+		} catch(RejectedExecutionException e) {
+			// session closed
+		}
+	}
+	
+	private void setTimer(long delay) {
+		synchronized (signal) {
+			long when=System.currentTimeMillis()+delay;
+			if (timer!=null && !timer.isDone()) {
+				if (deadline<=when)
+					return;
+				timer.cancel(false);
+			}
+			try {
+				timer=session.executor.schedule(tick, delay, TimeUnit.MILLISECONDS);
+				deadline=when;
+			} catch(RejectedExecutionException e) {
+				// session closed
+			}
+		}
+	}
+
+	// Shortest of two delays, where 0 means none
+	private static long earliest(long d1, long d2) {
+		if (d1==0 || (d2!=0 && d2<d1))
+			return d2;
+		return d1;
+	}
+
+	void wakeup(Event event) {
+		synchronized (signal) {
+			events.add(event);
+			schedule();
+		}
 	}
 }
\ No newline at end of file
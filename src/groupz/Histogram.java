@@ -0,0 +1,69 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of values in power of two buckets, cheap enough to be
+ * recorded for every message.
+ */
+class Histogram {
+	private final AtomicLongArray buckets=new AtomicLongArray(65);
+	private final LongAdder count=new LongAdder(), sum=new LongAdder();
+	private final AtomicLong max=new AtomicLong();
+	
+	public void record(long value) {
+		if (value<0)
+			value=0;
+		buckets.incrementAndGet(64-Long.numberOfLeadingZeros(value));
+		count.increment();
+		sum.add(value);
+		long old;
+		while(value>(old=max.get()) && !max.compareAndSet(old, value))
+			;
+	}
+	
+	public double mean() {
+		long n=count.sum();
+		return n>0?(double) sum.sum()/n:0;
+	}
+	
+	public long max() {
+		return max.get();
+	}
+	
+	public long percentile(double p) {
+		long n=count.sum(), seen=0;
+		for(int i=0; i<buckets.length(); i++) {
+			seen+=buckets.get(i);
+			if (seen>0 && seen>=p*n)
+				return i==0?0:Math.min((1L<<i)-1, max());
+		}
+		return max();
+	}
+	
+	public void reset() {
+		for(int i=0; i<buckets.length(); i++)
+			buckets.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
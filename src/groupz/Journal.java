@@ -0,0 +1,295 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package groupz;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only journal of messages delivered by an end-point, marked
+ * with the views in which they were delivered. The journal is written to
+ * memory-mapped segment files in a directory, named after the position of
+ * their first entry, and forced to disk periodically, such that several
+ * entries are made durable at once. The oldest segments can be removed
+ * as new ones are created.
+ * <p>
+ * A journal can be read back at any time, even while it is being written,
+ * and from a directory left by a process that has stopped.
+ *
+ * @author jop
+ */
+public class Journal implements Closeable {
+	/**
+	 * Handles entries read back from a journal.
+	 */
+	public interface Listener {
+		/**
+		 * Handle a view installed by the process.
+		 * @param position where the entry is in the journal
+		 * @param vid the view identifier
+		 * @param members the members of the view
+		 */
+		public void install(long position, int vid, String[] members) throws IOException;
+
+		/**
+		 * Handle a message delivered by the process.
+		 * @param position where the entry is in the journal
+		 * @param vid the view in which the message was delivered
+		 * @param seq the number of messages delivered before it in the view
+		 * @param data read-only view of message data, mapped from the journal
+		 */
+		public void receive(long position, int vid, int seq, ByteBuffer data) throws IOException;
+	}
+
+	// Each entry has its length, written last, a checksum of the rest,
+	// the type, the view, and the sequence number in the view
+	private static final int HEADER=17;
+	private static final byte VIEW=1, MESSAGE=2;
+	private static final String SUFFIX=".log";
+
+	private File dir;
+	private int segmentSize, retained;
+	private long syncInterval;
+
+	private TreeMap<Long,File> segments=new TreeMap<Long, File>();
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private long base;
+	private long lastSync;
+	private boolean dirty;
+	private CRC32 crc=new CRC32();
+
+	/**
+	 * Open a journal with 64 MB segments, forced to disk every 100 ms,
+	 * keeping all segments.
+	 *
+	 * @param dir the directory, created if needed
+	 * @throws IOException if the directory cannot be used
+	 */
+	public Journal(File dir) throws IOException {
+		this(dir, 64*1024*1024, 100, 0);
+	}
+
+	/**
+	 * Open a journal, to be appended to after its last complete entry.
+	 *
+	 * @param dir the directory, created if needed
+	 * @param segmentSize the size of each segment file in bytes, which is
+	 * larger only if needed for a single message
+	 * @param syncInterval the maximum time in milliseconds between forcing
+	 * entries to disk, or 0 to force them in every protocol round
+	 * @param retained how many segments are kept, or 0 to keep them all
+	 * @throws IOException if the directory cannot be used
+	 */
+	public Journal(File dir, int segmentSize, long syncInterval, int retained) throws IOException {
+		this.dir=dir;
+		this.segmentSize=segmentSize;
+		this.syncInterval=syncInterval;
+		this.retained=retained;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create "+dir);
+		for(File file: dir.listFiles())
+			if (file.getName().endsWith(SUFFIX))
+				segments.put(Long.parseLong(file.getName().substring(0, file.getName().length()-SUFFIX.length())), file);
+		if (!segments.isEmpty())
+			recover();
+	}
+
+	// Continue after the last complete entry, discarding anything after it
+	private void recover() throws IOException {
+		Map.Entry<Long,File> last=segments.lastEntry();
+		base=last.getKey();
+		channel=FileChannel.open(last.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		map=channel.map(MapMode.READ_WRITE, 0, channel.size());
+		int end=scan(map, 0, map.limit());
+		for(int i=end; i<map.limit(); i++)
+			map.put(i, (byte) 0);
+		map.position(end);
+		dirty=true;
+	}
+
+	// Position after the last complete entry
+	private int scan(ByteBuffer segment, int pos, int limit) {
+		while(entry(segment, pos, limit)>0)
+			pos+=segment.getInt(pos);
+		return pos;
+	}
+
+	// Length of a complete entry, or 0 if there is none
+	private int entry(ByteBuffer segment, int pos, int limit) {
+		if (pos+HEADER>limit)
+			return 0;
+		int len=segment.getInt(pos);
+		if (len<HEADER || pos+len>limit)
+			return 0;
+		ByteBuffer body=segment.duplicate();
+		body.limit(pos+len).position(pos+8);
+		CRC32 check=new CRC32();
+		check.update(body);
+		return (int) check.getValue()==segment.getInt(pos+4)?len:0;
+	}
+
+	synchronized long install(int vid, String[] members) throws IOException {
+		StringBuilder names=new StringBuilder();
+		for(String member: members) {
+			if (names.length()>0)
+				names.append(',');
+			names.append(member);
+		}
+		return append(VIEW, vid, 0, ByteBuffer.wrap(names.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	synchronized long receive(int vid, int seq, ByteBuffer data) throws IOException {
+		return append(MESSAGE, vid, seq, data);
+	}
+
+	private long append(byte type, int vid, int seq, ByteBuffer data) throws IOException {
+		int len=HEADER+data.remaining();
+		if (map==null || map.remaining()<len)
+			roll(len);
+		int pos=map.position();
+		map.position(pos+8);
+		map.put(type).putInt(vid).putInt(seq).put(data.duplicate());
+		ByteBuffer body=map.duplicate();
+		body.limit(pos+len).position(pos+8);
+		crc.reset();
+		crc.update(body);
+		map.putInt(pos+4, (int) crc.getValue());
+		map.putInt(pos, len);
+		dirty=true;
+		return base+pos;
+	}
+
+	private void roll(int len) throws IOException {
+		if (map!=null) {
+			map.force();
+			base+=map.position();
+			channel.close();
+		}
+		File file=new File(dir, String.format("%020d", base)+SUFFIX);
+		channel=FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		map=channel.map(MapMode.READ_WRITE, 0, Math.max(segmentSize, len));
+		segments.put(base, file);
+		lastSync=System.currentTimeMillis();
+		dirty=false;
+		while(retained>0 && segments.size()>retained)
+			segments.pollFirstEntry().getValue().delete();
+	}
+
+	/**
+	 * Force entries to disk, when forced or when the oldest has waited
+	 * long enough.
+	 *
+	 * @return the time in milliseconds until entries are due, or 0 if
+	 * none are waiting
+	 */
+	synchronized long sync(boolean force) throws IOException {
+		if (!dirty)
+			return 0;
+		long now=System.currentTimeMillis();
+		long delay=lastSync+syncInterval-now;
+		if (!force && delay>0)
+			return delay;
+		map.force();
+		lastSync=now;
+		dirty=false;
+		return 0;
+	}
+
+	/**
+	 * Get the position of the oldest entry kept.
+	 */
+	public synchronized long getStart() {
+		return segments.isEmpty()?0:segments.firstKey();
+	}
+
+	/**
+	 * Get the position after the last entry.
+	 */
+	public synchronized long getEnd() {
+		return map!=null?base+map.position():base;
+	}
+
+	/**
+	 * Read entries back, up to those written when called. Messages are
+	 * handed out as read-only views of the mapped segments, without
+	 * copying them.
+	 *
+	 * @param from the position of the first entry, as given to a listener,
+	 * or 0 for the oldest entry kept
+	 * @param listener handles entries
+	 */
+	public void replay(long from, Listener listener) throws IOException {
+		TreeMap<Long,File> files;
+		long end;
+		synchronized (this) {
+			files=new TreeMap<Long, File>(segments);
+			end=getEnd();
+		}
+		Long first=files.floorKey(from);
+		if (first!=null)
+			files=new TreeMap<Long, File>(files.tailMap(first));
+		for(Map.Entry<Long,File> segment: files.entrySet()) {
+			long start=segment.getKey();
+			MappedByteBuffer mapped;
+			try(FileChannel file=FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ)) {
+				mapped=file.map(MapMode.READ_ONLY, 0, file.size());
+			} catch(IOException e) {
+				// removed meanwhile
+				continue;
+			}
+			int limit=(int) Math.min(mapped.limit(), end-start);
+			int pos=(int) Math.max(0, from-start);
+			int len;
+			while((len=entry(mapped, pos, limit))>0) {
+				byte type=mapped.get(pos+8);
+				int vid=mapped.getInt(pos+9);
+				ByteBuffer data=mapped.duplicate();
+				data.limit(pos+len).position(pos+HEADER);
+				data=data.slice().asReadOnlyBuffer();
+				if (type==VIEW) {
+					String names=StandardCharsets.UTF_8.decode(data).toString();
+					listener.install(start+pos, vid, names.isEmpty()?new String[0]:names.split(","));
+				} else
+					listener.receive(start+pos, vid, mapped.getInt(pos+13), data);
+				pos+=len;
+			}
+		}
+	}
+
+	/**
+	 * Force all entries to disk and stop writing.
+	 */
+	public synchronized void close() throws IOException {
+		if (channel==null)
+			return;
+		sync(true);
+		channel.close();
+		channel=null;
+	}
+}
@@ -16,82 +16,936 @@
 
 package groupz;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
 
 class Messages implements Watcher {
 	private Endpoint ep;
 	private String path;
 	
-	private int lastSent=-1, lastRecv=-1, lastStable=-1;
-	private List<byte[]> data=new ArrayList<byte[]>();
+	// Messages are spread over one or more directories, each read by
+	// a cursor, and merged in rounds of one node from each of them
+	private Shard[] shards;
+	private int round, lastRecv=-1, lastMerged=-1;
+	private boolean ended;
+	private List<ByteBuffer> data=new ArrayList<ByteBuffer>();
+	private long buffered;
+	// Partition keys and send times of messages read, and of those last
+	// received
+	private long[] keys=new long[64], received=new long[64];
+	private long[] stamps=new long[64], receivedStamps=new long[64];
 	
-	public Messages(String path, String me, Endpoint ep) throws KeeperException, InterruptedException {
+	// Next batch expected from each sender, and those received ahead of it
+	private Map<String,Integer> expected=new HashMap<String, Integer>();
+	private Map<String,SortedMap<Integer,ByteBuffer>> early=new HashMap<String, SortedMap<Integer,ByteBuffer>>();
+	// Whether senders might be first seen after their initial batch,
+	// by an observer that skipped or missed some
+	private boolean resync;
+	private int missed;
+	
+	// Leading fragments of a message from each sender
+	private Map<String,ByteArrayOutputStream> partial=new HashMap<String, ByteArrayOutputStream>();
+	
+	// Flags of each message
+	private static final int COMPRESSED=1, MORE=2, KEYED=4, STAMPED=8;
+	// Bytes before each fragment at most, and bytes in a batch besides
+	// fragments at most, as the header has a process id
+	private static final int PREFIX=17;
+	static final int OVERHEAD=64;
+	// Length in place of the first message, when the batch was pushed
+	private static final int DIRECT=-1;
+	
+	// Messages from each member that need not be merged with others
+	private Shard[] streams;
+	
+	// Messages waiting to be sent in the same znode, and batches not yet
+	// confirmed by ZooKeeper, guarded by the outbox monitor as the latter
+	// are updated by callbacks
+	private final Object outbox=new Object();
+	private Outlet ordered, fifo;
+	private int outstanding;
+	private String me;
+	// Other members, when batches are pushed to them directly
+	private int vid;
+	private List<String> peers;
+	
+	// New members that have yet to read state transferred to them
+	private Set<String> takers;
+	
+	// The directories are created with the view. An observer, which
+	// does not send, is not one of the members.
+	public Messages(String path, int vid, String[] members, String me, Endpoint ep) {
 		this.ep=ep;
-		this.path=path+"/messages";
-
-		create();
-	}
-
-	private void create() throws KeeperException, InterruptedException {
-		try {
-			ep.zk.create(path, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-		} catch (KeeperException.NodeExistsException e) {
-			// already done
+		this.me=me;
+		this.vid=vid;
+		this.path=path+"/"+vid+"/messages";
+		if (ep.transport!=null && me!=null) {
+			peers=new ArrayList<String>(Arrays.asList(members));
+			peers.remove(me);
+			if (!ep.transport.reaches(peers))
+				peers=null;
 		}
+		shards=new Shard[ep.shards];
+		for(int i=0; i<shards.length; i++)
+			shards[i]=new Shard(i, shards.length==1?this.path:this.path+"/"+i);
+		// Always the same directory, to keep FIFO order
+		if (me!=null)
+			ordered=new Outlet(me, shards[Math.floorMod(me.hashCode(), shards.length)]);
+		
+		streams=new Shard[members.length];
+		for(int i=0; i<members.length; i++) {
+			streams[i]=new Shard(-1, stream(path+"/"+vid, members[i]));
+			if (me!=null && members[i].equals(me))
+				fifo=new Outlet(me+"/fifo", streams[i]);
+		}
+	}
+	
+	/**
+	 * Directory of messages from a member that need not be merged with
+	 * others, created with the view.
+	 */
+	static String stream(String view, String member) {
+		return view+"/fifo/"+member;
+	}
+	
+	/**
+	 * Directories holding messages in a view, relative to it.
+	 */
+	static List<String> directories(int shards) {
+		List<String> dirs=new ArrayList<String>();
+		for(int i=0; shards>1 && i<shards; i++)
+			dirs.add("messages/"+i);
+		return dirs;
 	}
 
 	@Override
 	public void process(WatchedEvent event) {
-		ep.wakeup();
+		ep.wakeup(Endpoint.Event.MESSAGE);
 	}
 
-	public synchronized List<byte[]> receiveAndGC(int low) throws NumberFormatException, KeeperException, InterruptedException {
-		this.lastStable=low;
+	/**
+	 * Get new messages, as read-only views of data fetched from ZooKeeper.
+	 * 
+	 * @param into a list to which messages are added
+	 * @return the same list
+	 */
+	public synchronized List<ByteBuffer> receive(List<ByteBuffer> into) throws KeeperException, InterruptedException, GroupException {
+		update();
+		into.addAll(data);
+		lastRecv=lastMerged;
+		data.clear();
+		buffered=0;
+		long[] swap=received;
+		received=keys;
+		keys=swap;
+		swap=receivedStamps;
+		receivedStamps=stamps;
+		stamps=swap;
+		return into;
+	}
+	
+	/**
+	 * Get the partition key of a message from the last call to receive().
+	 * 
+	 * @param i the position of the message in the list
+	 * @return the key, or Dispatcher.NONE
+	 */
+	public long getKey(int i) {
+		return received[i];
+	}
+	
+	/**
+	 * Get the time at which a message from the last call to receive()
+	 * was sent.
+	 * 
+	 * @param i the position of the message in the list
+	 * @return the time in milliseconds, or 0 if not stamped
+	 */
+	public long getStamp(int i) {
+		return receivedStamps[i];
+	}
+	
+	/**
+	 * Remove stable messages in the background. This should be done
+	 * by a single process.
+	 */
+	public synchronized void collect(int low) {
+		for(Shard shard: shards)
+			shard.collector.collect(Math.min(local(low, shard.index), shard.lastRead));
+	}
+	
+	/**
+	 * Get how far the stream of each member has been received, in the
+	 * order of members in the view.
+	 */
+	public synchronized int[] getStreams() {
+		int[] positions=new int[streams.length];
+		for(int i=0; i<streams.length; i++)
+			positions[i]=streams[i].lastRead;
+		return positions;
+	}
+	
+	/**
+	 * Remove messages from streams that all members have delivered, as
+	 * those are not covered by stable messages. This should be done by
+	 * a single process.
+	 */
+	public synchronized void collect(int[] low) {
+		for(int i=0; i<streams.length; i++)
+			streams[i].collector.collect(Math.min(low[i], streams[i].lastRead));
+	}
+	
+	/**
+	 * Wait for new members to acknowledge state transferred to them,
+	 * before it can be released.
+	 */
+	public synchronized void transfer(Collection<String> members) {
+		takers=new HashSet<String>(members);
+	}
+	
+	/**
+	 * Remove state transferred to new members once all of them have
+	 * acknowledged reading it, watching for acknowledgments until then.
+	 * This should be done by a single process.
+	 */
+	public synchronized void release() throws KeeperException, InterruptedException {
+		if (takers==null)
+			return;
+		String view=path.substring(0, path.lastIndexOf('/'));
+		List<String> acks=ep.zk.getChildren(view+"/taken", this);
+		takers.removeAll(acks);
+		if (!takers.isEmpty())
+			return;
+		takers=null;
+		new Collector(view+"/state", ep).collect(ep.zk.getChildren(view+"/state", false).size()-1);
+		for(String ack: acks)
+			ep.zk.delete(view+"/taken/"+ack, -1);
+	}
+	
+	/**
+	 * Remove messages from streams, and state transferred to new members
+	 * that never acknowledged it, once all members that go on to the next
+	 * view have received them. This should be done by a single process.
+	 */
+	public synchronized void retire() throws KeeperException, InterruptedException {
+		for(Shard stream: streams)
+			stream.collector.collect(stream.lastRead);
+		String state=path.substring(0, path.lastIndexOf('/'))+"/state";
+		new Collector(state, ep).collect(ep.zk.getChildren(state, false).size()-1);
+	}
+	
+	/**
+	 * Check whether all messages from streams have been received, as of
+	 * the last update. This is final only after all members have blocked.
+	 */
+	public synchronized boolean isComplete() {
+		if (!data.isEmpty())
+			return false;
+		for(Shard stream: streams)
+			if (stream.lastRead<stream.lastCreated)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Start after messages sent so far, which are never received. Senders
+	 * are then followed from whatever batch of theirs comes next.
+	 */
+	public synchronized void skip() throws KeeperException, InterruptedException {
+		for(Shard shard: shards) {
+			shard.created();
+			round=Math.max(round, shard.lastCreated+1);
+		}
+		for(Shard shard: shards)
+			shard.lastRead=round-1;
+		lastRecv=lastMerged=global(round-1, shards.length-1);
+		for(Shard stream: streams) {
+			stream.created();
+			stream.lastRead=stream.lastCreated;
+		}
+		resync=true;
+	}
+	
+	/**
+	 * Give up on messages of an ended view that have been removed before
+	 * being read. Nobody waits for an observer, so that this happens
+	 * when it falls behind stable messages or those of a previous view.
+	 * 
+	 * @return true if all that is left has been read, false if reading
+	 * is held back by the delivery budget
+	 */
+	public synchronized boolean finish() throws KeeperException, InterruptedException, GroupException {
+		ended=true;
 		update();
-		List<byte[]> result=data;
-		lastRecv=lastSent;
-		data=new ArrayList<byte[]>();
+		if (full())
+			return false;
+		for(Shard shard: shards)
+			shard.skip(shard.lastCreated);
+		merge();
+		for(Shard stream: streams)
+			stream.skip(stream.lastCreated);
+		return true;
+	}
+	
+	/**
+	 * Get how many nodes have been found missing since the last call,
+	 * each holding a batch of messages, or padding.
+	 */
+	public synchronized int getMissed() {
+		int result=missed;
+		missed=0;
 		return result;
 	}
 	
-	private void update() throws KeeperException, InterruptedException {
-		SortedSet<String> childs=new TreeSet<String>();
-		childs.addAll(ep.zk.getChildren(path, this));
-		for(String child: childs) {
-			int id=Integer.parseInt(child);
-			if (id>lastSent) {
-				byte[] value=ep.zk.getData(path+"/"+child, null, null);
-				data.add(value);
-				lastSent=id;
-			} else if (id<=lastStable){
+	/**
+	 * Declare that no more messages will be sent in the view, as all
+	 * members have blocked. Directories that are behind others are then
+	 * known to have ended.
+	 */
+	public synchronized void end() {
+		ended=true;
+	}
+	
+	/**
+	 * Fill directories that fall behind with empty nodes, as merging
+	 * waits for them. This should be done by a single process, while
+	 * messages can still be sent.
+	 * 
+	 * @return the time in milliseconds until directories should be
+	 * checked again, or 0 if none is behind
+	 */
+	public synchronized long pad() {
+		if (shards.length==1)
+			return 0;
+		int end=0;
+		for(Shard shard: shards)
+			end=Math.max(end, shard.lastCreated+1);
+		long now=System.currentTimeMillis(), delay=0;
+		for(Shard shard: shards) {
+			if (shard.lastCreated+1>=end) {
+				shard.lagging=0;
+				continue;
+			}
+			if (shard.lagging==0)
+				shard.lagging=now;
+			long wait=shard.lagging+ep.padDelay-now;
+			if (wait<=0) {
+				// Failures are noticed when next checked
+				for(int i=shard.lastCreated+1; i<end; i++)
+					ep.zk.create(shard.path+"/", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL, padded, null);
+				shard.lagging=now;
+				wait=ep.padDelay;
+			}
+			delay=delay==0?wait:Math.min(delay, wait);
+		}
+		return delay;
+	}
+	
+	private static final StringCallback padded=new StringCallback() {
+		public void processResult(int rc, String path, Object ctx, String name) {
+			// don't care
+		}
+	};
+	
+	static String name(int id) {
+		return String.format("%010d", id);
+	}
+	
+	// Sequence numbers in the view are spread over directories, such
+	// that round r of directory i is r*K+i
+	private int global(int id, int shard) {
+		return id<0?-1:id*shards.length+shard;
+	}
+	
+	// Last node of a directory up to some sequence number in the view
+	private int local(int seq, int shard) {
+		return Math.floorDiv(seq-shard, shards.length);
+	}
+	
+	// Read from each directory as far as possible and then merge, while
+	// streams are taken as they are
+	private void update() throws KeeperException, InterruptedException, GroupException {
+		for(Shard shard: shards)
+			shard.update();
+		merge();
+		for(Shard stream: streams) {
+			stream.update();
+			for(byte[] value: stream.read.values())
+				unpack(value);
+			stream.read.clear();
+		}
+	}
+	
+	// A round is merged once a node, or a gap, has been read at that
+	// position from all directories. Empty nodes only fill the round.
+	private void merge() throws GroupException {
+		while(true) {
+			boolean pending=false;
+			for(Shard shard: shards) {
+				if (shard.lastRead>=round)
+					pending=true;
+				else if (!ended || round<=shard.lastCreated)
+					return;
+			}
+			if (!pending)
+				return;
+			for(Shard shard: shards) {
+				byte[] value=shard.read.remove(round);
+				if (value!=null && value.length>0)
+					unpack(value);
+			}
+			lastMerged=global(round, shards.length-1);
+			round++;
+		}
+	}
+	
+	private boolean full() {
+		return ep.deliveryBudget>0 && buffered>=ep.deliveryBudget;
+	}
+	
+	private static Iterator<Integer> range(final int from, final int to) {
+		return new Iterator<Integer>() {
+			private int next=from;
+			
+			public boolean hasNext() {
+				return next<to;
+			}
+			
+			public Integer next() {
+				return next++;
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	// A directory of sequential nodes, with those read but not yet merged
+	private class Shard {
+		// Position among merged directories, or -1 for a stream
+		private int index;
+		private String path;
+		private int lastRead=-1, lastCreated=-1;
+		private SortedMap<Integer,byte[]> read=new TreeMap<Integer, byte[]>();
+		private Collector collector;
+		// When it was first seen behind others
+		private long lagging;
+		
+		public Shard(int index, String path) {
+			this.index=index;
+			this.path=path;
+			this.collector=new Collector(path, ep);
+		}
+		
+		// Sequence number of a node in the view, or in the stream
+		public int position(int id) {
+			return index<0?id:global(id, index);
+		}
+		
+		// The reported cversion counts both creations and deletions
+		private int created(Stat stat) {
+			int end=(stat.getCversion()+stat.getNumChildren())/2;
+			lastCreated=Math.max(lastCreated, end-1);
+			return end;
+		}
+		
+		public void created() throws KeeperException, InterruptedException {
+			Stat stat=ep.zk.exists(path, false);
+			if (stat!=null)
+				created(stat);
+		}
+		
+		// Nodes up to some id that have not been read are gone, which
+		// means that senders might be missing some batches
+		private void skip(int id) {
+			if (id<=lastRead)
+				return;
+			missed+=id-lastRead;
+			lastRead=id;
+			if (me==null) {
+				resync=true;
+				expected.clear();
+				early.clear();
+				partial.clear();
+			}
+		}
+		
+		// Follow the sequence of nodes from the last one read, as ZooKeeper
+		// numbers them consecutively. Listing the directory is only needed
+		// if some number is skipped. Reading stops when the delivery budget
+		// is exhausted, and resumes in the next round, except for what
+		// the current round needs to be merged.
+		public void update() throws KeeperException, InterruptedException, GroupException {
+			while(true) {
+				boolean limited=full();
+				if (limited && (index<0 || lastRead>=round)) {
+					ep.wakeup(Endpoint.Event.MESSAGE);
+					break;
+				}
+				
+				Stat stat=ep.zk.exists(path, false);
+				int end=created(stat);
+				if (limited)
+					end=Math.min(end, round+1);
+				if (end<=lastRead+1) {
+					if (ep.zk.exists(path+"/"+name(lastRead+1), Messages.this)==null)
+						break;
+					end=lastRead+2;
+				}
+				
+				if (fetch(range(lastRead+1, end), limited))
+					continue;
+	
+				SortedSet<Integer> ids=new TreeSet<Integer>();
+				for(String child: ep.zk.getChildren(path, false))
+					ids.add(Integer.parseInt(child));
+				ids=ids.tailSet(lastRead+1);
+				if (limited)
+					ids=ids.headSet(round+1);
+				if (!fetch(ids.iterator(), limited))
+					break;
+			}
+		}
+		
+		// Get nodes with several requests in flight. A missing node is
+		// skipped only if some later one exists, as then it cannot be
+		// created anymore.
+		private boolean fetch(Iterator<Integer> ids, boolean limited) throws KeeperException, InterruptedException, GroupException {
+			int first=lastRead;
+			Deque<Fetch> window=new ArrayDeque<Fetch>();
+			while(true) {
+				while(window.size()<ep.fetchWindow && ids.hasNext() && (limited || !full()))
+					window.add(new Fetch(path, ids.next()));
+				if (window.isEmpty())
+					break;
+				Fetch fetch=window.remove();
+				byte[] value=fetch.get();
+				if (value!=null) {
+					skip(fetch.id-1);
+					read.put(fetch.id, value);
+					lastRead=fetch.id;
+					buffered+=value.length;
+				}
+			}
+			return lastRead>first;
+		}
+	}
+	
+	private class Fetch implements DataCallback {
+		private String path;
+		private int id, rc;
+		private byte[] value;
+		private boolean done;
+		
+		public Fetch(String path, int id) {
+			this.path=path;
+			this.id=id;
+			ep.zk.getData(path+"/"+name(id), false, this, null);
+		}
+		
+		public synchronized void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+			this.rc=rc;
+			this.value=data;
+			this.done=true;
+			notifyAll();
+		}
+		
+		public synchronized byte[] get() throws KeeperException, InterruptedException {
+			while(!done)
+				wait();
+			if (rc==Code.CONNECTIONLOSS.intValue()) {
 				try {
-					ep.zk.delete(path+"/"+child, -1);
+					return ep.zk.getData(path+"/"+name(id), false, null);
 				} catch(KeeperException.NoNodeException e) {
-					// someone got there first...
+					return null;
 				}
 			}
+			if (rc==Code.NONODE.intValue())
+				return null;
+			if (rc!=Code.OK.intValue())
+				throw KeeperException.create(Code.get(rc), path+"/"+name(id));
+			return value;
+		}
+	}
+	
+	// Each znode holds the sender, a per-sender batch number, and then
+	// one or more length-prefixed messages, or just a mark if the batch
+	// was pushed to all members. Batches are resent after a connection
+	// loss, so that duplicates are discarded and those that overtake an
+	// earlier one are held back.
+	private void unpack(byte[] value) throws GroupException {
+		ByteBuffer buf=ByteBuffer.wrap(value);
+		byte[] id=new byte[buf.getShort()];
+		buf.get(id);
+		String sender=new String(id, StandardCharsets.UTF_8);
+		int number=buf.getInt();
+		
+		Integer next=expected.get(sender);
+		if (next==null)
+			next=resync?number:0;
+		boolean direct=buf.remaining()==4 && buf.getInt(buf.position())==DIRECT;
+		// A copy pushed to this process before falling back to ZooKeeper
+		if (!direct && ep.transport!=null)
+			ep.transport.take(vid, sender, number);
+		if (number<next)
+			return;
+		if (direct) {
+			byte[] pushed=ep.transport!=null?ep.transport.take(vid, sender, number):null;
+			if (pushed!=null) {
+				int header=buf.position();
+				buf=ByteBuffer.wrap(pushed);
+				buf.position(header);
+			} else if (me==null) {
+				// Never pushed to observers
+				buf.position(buf.limit());
+				missed++;
+			} else
+				throw new GroupException("missing batch "+number+" from "+sender, null);
+		}
+		if (number>next) {
+			SortedMap<Integer,ByteBuffer> held=early.get(sender);
+			if (held==null) {
+				held=new TreeMap<Integer, ByteBuffer>();
+				early.put(sender, held);
+			}
+			held.put(number, buf);
+			return;
+		}
+		
+		while(buf!=null) {
+			while(buf.hasRemaining()) {
+				int len=buf.getInt();
+				int flags=buf.get();
+				long key=(flags&KEYED)!=0?buf.getInt()&0xffffffffL:Dispatcher.NONE;
+				long stamp=(flags&STAMPED)!=0?buf.getLong():0;
+				ByteBuffer msg=buf.slice();
+				msg.limit(len);
+				buf.position(buf.position()+len);
+				msg=reassemble(sender, msg, flags);
+				if (msg!=null)
+					add(msg.asReadOnlyBuffer(), key, stamp);
+			}
+			next++;
+			buf=early.containsKey(sender)?early.get(sender).remove(next):null;
+		}
+		expected.put(sender, next);
+	}
+	
+	private void add(ByteBuffer msg, long key, long stamp) {
+		if (data.size()==keys.length) {
+			keys=Arrays.copyOf(keys, keys.length*2);
+			stamps=Arrays.copyOf(stamps, stamps.length*2);
 		}
+		keys[data.size()]=key;
+		stamps[data.size()]=stamp;
+		data.add(msg);
 	}
 	
-	public void send(byte[] data) throws KeeperException, InterruptedException {
-		ep.zk.create(path+"/", data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+	// A message is delivered once its last fragment is, which places it
+	// in the total order. Fragments from a sender are consecutive in its
+	// stream, and those left over by a sender that failed are discarded
+	// everywhere along with the view.
+	private ByteBuffer reassemble(String sender, ByteBuffer msg, int flags) throws GroupException {
+		ByteArrayOutputStream head=partial.get(sender);
+		if ((flags&MORE)!=0) {
+			if (head==null) {
+				head=new ByteArrayOutputStream();
+				partial.put(sender, head);
+			}
+			head.write(msg.array(), msg.arrayOffset()+msg.position(), msg.remaining());
+			return null;
+		}
+		if (head!=null) {
+			head.write(msg.array(), msg.arrayOffset()+msg.position(), msg.remaining());
+			msg=ByteBuffer.wrap(head.toByteArray());
+			partial.remove(sender);
+		}
+		if ((flags&COMPRESSED)!=0) {
+			if (ep.codec==null)
+				throw new GroupException("compressed message without a codec", null);
+			byte[] value=new byte[msg.remaining()];
+			msg.get(value);
+			try {
+				msg=ByteBuffer.wrap(ep.codec.decode(value));
+			} catch (IOException e) {
+				throw new GroupException("cannot decode message", e);
+			}
+		}
+		return msg;
+	}
+	
+	/**
+	 * Send the remaining bytes of a buffer as a message, compressing it
+	 * and splitting it in fragments as configured. The buffer is copied
+	 * before returning. The result is the sequence number of the last
+	 * fragment, which also carries the partition key, if any. Messages
+	 * in FIFO order are numbered separately for each sender.
+	 */
+	public CompletableFuture<Integer> send(ByteBuffer data, long key, Ordering order) {
+		CompletableFuture<Integer> result=new CompletableFuture<Integer>();
+		long stamp=ep.stamping?System.currentTimeMillis():0;
+		data=data.duplicate();
+		int flags=0;
+		if (ep.codec!=null && data.remaining()>=ep.compressThreshold) {
+			byte[] value=new byte[data.remaining()];
+			data.get(value);
+			data=ByteBuffer.wrap(ep.codec.encode(value));
+			flags|=COMPRESSED;
+		}
+		Outlet outlet=order==Ordering.FIFO?fifo:ordered;
+		synchronized (outbox) {
+			do {
+				Outbuf batch=outlet.batch;
+				int len=Math.min(data.remaining(), ep.fragmentSize-OVERHEAD);
+				if (batch.size()>0 && batch.size()+len+PREFIX>ep.fragmentSize)
+					outlet.flush(true);
+				if (batch.size()==0) {
+					batch.writeHeader(outlet.id);
+					outlet.deadline=System.currentTimeMillis()+ep.batchLinger;
+				}
+				// Headers count towards the size of the node
+				len=Math.min(data.remaining(), ep.fragmentSize-batch.size()-PREFIX);
+				
+				batch.writeInt(len);
+				if (len<data.remaining())
+					batch.write(flags|MORE);
+				else {
+					batch.write(flags|(key!=Dispatcher.NONE?KEYED:0)|(stamp>0?STAMPED:0));
+					if (key!=Dispatcher.NONE)
+						batch.writeInt((int) key);
+					if (stamp>0)
+						batch.writeLong(stamp);
+				}
+				batch.write(data, len);
+				
+				if (!data.hasRemaining())
+					outlet.batched.add(result);
+				if (batch.size()>=ep.batchSize || ep.batchLinger<=0)
+					outlet.flush(true);
+			} while(data.hasRemaining());
+		}
+		return result;
+	}
+	
+	/**
+	 * Send pending messages, if any, when forced or when the oldest has
+	 * waited long enough.
+	 * 
+	 * @return the time in milliseconds until the next batch is due, or 0
+	 * if there are no pending messages
+	 */
+	public long flush(boolean force) {
+		if (ordered==null)
+			return 0;
+		synchronized (outbox) {
+			long delay=ordered.flush(force), other=fifo.flush(force);
+			return delay==0 || (other!=0 && other<delay)?other:delay;
+		}
+	}
+	
+	/**
+	 * Wait until all batches sent have been confirmed by ZooKeeper.
+	 */
+	public void drain() throws InterruptedException {
+		synchronized (outbox) {
+			while(outstanding>0)
+				outbox.wait();
+		}
+	}
+	
+	// Batches from this process to a directory, with the sender in their
+	// header, which is distinct for each directory. Guarded by the outbox
+	// monitor.
+	private class Outlet {
+		private String id;
+		private Shard target;
+		private Outbuf batch=new Outbuf();
+		private List<CompletableFuture<Integer>> batched=new ArrayList<CompletableFuture<Integer>>();
+		private long deadline;
+		private int batches;
+		
+		public Outlet(String id, Shard target) {
+			this.id=id;
+			this.target=target;
+		}
+		
+		public long flush(boolean force) {
+			if (batch.size()==0)
+				return 0;
+			long delay=deadline-System.currentTimeMillis();
+			if (!force && delay>0)
+				return delay;
+			
+			batch.setNumber(batches++);
+			new Batch(batch.toByteArray(), batched, target).start();
+			batched=new ArrayList<CompletableFuture<Integer>>();
+			batch.reset();
+			outstanding++;
+			return 0;
+		}
+	}
+	
+	// Batch being filled, starting with a header where the batch number is
+	// set when it is sent, such that its contents are copied only once
+	private static class Outbuf extends ByteArrayOutputStream {
+		private byte[] scratch;
+		private int number;
+		
+		public void writeHeader(String me) {
+			byte[] id=me.getBytes(StandardCharsets.UTF_8);
+			writeShort(id.length);
+			write(id, 0, id.length);
+			number=count;
+			writeInt(0);
+		}
+		
+		public void setNumber(int value) {
+			int end=count;
+			count=number;
+			writeInt(value);
+			count=end;
+		}
+		
+		public void writeShort(int value) {
+			write(value>>>8);
+			write(value);
+		}
+		
+		public void writeInt(int value) {
+			writeShort(value>>>16);
+			writeShort(value);
+		}
+		
+		public void writeLong(long value) {
+			writeInt((int) (value>>>32));
+			writeInt((int) value);
+		}
+		
+		// Direct buffers are copied through a reusable array
+		public void write(ByteBuffer src, int len) {
+			if (src.hasArray()) {
+				write(src.array(), src.arrayOffset()+src.position(), len);
+				src.position(src.position()+len);
+				return;
+			}
+			if (scratch==null)
+				scratch=new byte[8192];
+			while(len>0) {
+				int n=Math.min(len, scratch.length);
+				src.get(scratch, 0, n);
+				write(scratch, 0, n);
+				len-=n;
+			}
+		}
+	}
+	
+	private class Batch implements StringCallback {
+		private byte[] value;
+		private List<CompletableFuture<Integer>> waiting;
+		private Shard target;
+		
+		public Batch(byte[] value, List<CompletableFuture<Integer>> waiting, Shard target) {
+			this.value=value;
+			this.waiting=waiting;
+			this.target=target;
+		}
+		
+		// Other members must have the batch before it is ordered, as the
+		// sender might fail right after. If any of them cannot be reached,
+		// the whole batch goes through ZooKeeper instead.
+		public void start() {
+			if (peers==null) {
+				send();
+				return;
+			}
+			ep.transport.put(vid, value);
+			ep.transport.push(vid, peers, value).whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void v, Throwable e) {
+					if (e==null) {
+						int header=ByteBuffer.wrap(value).getShort()+6;
+						value=ByteBuffer.allocate(header+4).put(value, 0, header).putInt(DIRECT).array();
+					} else
+						Endpoint.logger.debug("sending batch through ZooKeeper", e);
+					send();
+				}
+			});
+		}
+		
+		// Requests from a session are applied in order, so any number of these
+		// can be in flight while still preserving FIFO order. Pushed batches
+		// can be ordered out of sequence, and are then held back.
+		public void send() {
+			ep.zk.create(target.path+"/", value, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL, this, null);
+		}
+		
+		public void processResult(int rc, String path, Object ctx, String name) {
+			if (rc==Code.CONNECTIONLOSS.intValue()) {
+				send();
+				return;
+			}
+			for(CompletableFuture<Integer> result: waiting)
+				if (rc==Code.OK.intValue())
+					result.complete(target.position(Integer.parseInt(name.substring(name.lastIndexOf('/')+1))));
+				else
+					result.completeExceptionally(KeeperException.create(Code.get(rc), path));
+			synchronized (outbox) {
+				outstanding--;
+				outbox.notifyAll();
+			}
+		}
 	}
 	
 	public synchronized int getLastReceived() throws KeeperException, InterruptedException {
 		return lastRecv;
 	}
 	
-	public synchronized int getLastSent() throws KeeperException, InterruptedException {
+	/**
+	 * Get the sequence number of the last message known to have been sent
+	 * in the view, without contacting ZooKeeper.
+	 */
+	public synchronized int getLastKnown() {
+		int last=-1;
+		for(Shard shard: shards)
+			last=Math.max(last, global(Math.max(shard.lastRead, shard.lastCreated), shard.index));
+		return last;
+	}
+	
+	/**
+	 * Get the sequence number of the last message sent in the view, which
+	 * might not have been read yet.
+	 */
+	public synchronized int getLastSent() throws KeeperException, InterruptedException, GroupException {
 		update();
-		return lastSent;
+		return getLastKnown();
 	}
 }
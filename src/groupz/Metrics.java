@@ -0,0 +1,147 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+/**
+ * Statistics of an end-point, also exported with JMX as
+ * groupz:type=Endpoint,group=<i>gid</i>,process=<i>pid</i> once the
+ * group is joined. Latencies are in microseconds, and are approximated
+ * by the upper bound of a power of two.
+ * 
+ * @author jop
+ */
+public interface Metrics {
+	/**
+	 * @return the current state of the end-point
+	 */
+	public String getState();
+	
+	/**
+	 * @return the current view identifier
+	 */
+	public int getViewId();
+
+	/**
+	 * @return messages sent by this process
+	 */
+	public long getMessagesSent();
+	
+	/**
+	 * @return bytes sent by this process, before compression
+	 */
+	public long getBytesSent();
+	
+	/**
+	 * @return messages delivered to the application
+	 */
+	public long getMessagesDelivered();
+	
+	/**
+	 * @return bytes delivered to the application
+	 */
+	public long getBytesDelivered();
+	
+	/**
+	 * @return batches of messages that an observer could not read, as
+	 * they had been removed or were pushed only to members
+	 */
+	public long getBatchesMissed();
+	
+	/**
+	 * @return messages ordered but not yet delivered, as of the last round
+	 */
+	public int getDeliveryLag();
+	
+	/**
+	 * @return messages delivered but not yet known to be stable, as of the
+	 * last round
+	 */
+	public int getStabilityLag();
+	
+	/**
+	 * @return total time in milliseconds waiting for the application to
+	 * allow a view change
+	 */
+	public long getTimeBlocking();
+	
+	/**
+	 * @return total time in milliseconds waiting for a new view after
+	 * allowing it
+	 */
+	public long getTimeBlocked();
+	
+	/**
+	 * @return number of views installed
+	 */
+	public long getViewChanges();
+	
+	/**
+	 * @return time in milliseconds from blocking to installing the last
+	 * view
+	 */
+	public long getLastViewChangeTime();
+	
+	/**
+	 * @return number of protocol rounds run
+	 */
+	public long getRounds();
+	
+	/**
+	 * @return average ZooKeeper requests issued in each round by the
+	 * end-point, not counting those of other end-points on a shared
+	 * session
+	 */
+	public double getOperationsPerRound();
+	
+	/**
+	 * @return average time until a message sent is ordered
+	 */
+	public double getSendLatencyMean();
+	
+	/**
+	 * @return 99th percentile of the time until a message sent is ordered
+	 */
+	public long getSendLatency99();
+	
+	/**
+	 * @return maximum time until a message sent is ordered
+	 */
+	public long getSendLatencyMax();
+	
+	/**
+	 * @return average time from sending to delivering a message, if
+	 * messages are stamped
+	 */
+	public double getDeliveryLatencyMean();
+	
+	/**
+	 * @return 99th percentile of the time from sending to delivering a
+	 * message, if messages are stamped
+	 */
+	public long getDeliveryLatency99();
+	
+	/**
+	 * @return maximum time from sending to delivering a message, if
+	 * messages are stamped
+	 */
+	public long getDeliveryLatencyMax();
+	
+	/**
+	 * Restart counting.
+	 */
+	public void reset();
+}
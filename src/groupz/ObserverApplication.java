@@ -0,0 +1,39 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+/**
+ * Application callbacks for an end-point that observes the group without
+ * joining it. Observers are not waited for, and thus can miss messages
+ * when falling behind, which is reported here so that the application
+ * can recover them in some other way, such as from the journal of a
+ * member.
+ * 
+ * @author jop
+ */
+public interface ObserverApplication extends Application {
+	/**
+	 * Handle messages that could not be read. This is invoked after
+	 * those read along with them, and before the next view.
+	 * @param vid the view in which messages were sent
+	 * @param batches how many ZooKeeper nodes were missed, each holding
+	 * one or more messages
+	 * @throws GroupException an exception that might occur while trying to
+	 * perform other group operations
+	 */
+	public void missed(int vid, int batches) throws GroupException;
+}
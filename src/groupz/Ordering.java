@@ -0,0 +1,37 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package groupz;
+
+/**
+ * Delivery order of messages. Either way, messages are delivered in
+ * the view in which they were sent.
+ *
+ * @author jop
+ */
+public enum Ordering {
+	/**
+	 * All members deliver all messages in the same order.
+	 */
+	TOTAL,
+	/**
+	 * Messages from each sender are delivered in the order they were
+	 * sent, but not in any particular order with those from others.
+	 * These do not wait for each other, and cost less to send.
+	 */
+	FIFO
+}
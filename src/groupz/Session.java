@@ -0,0 +1,105 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * Connection to ZooKeeper shared by end-points. A process that joins many
+ * groups can create a single session and pass it to each end-point, which
+ * then run their protocol on a shared pool of threads. A failure in one of
+ * the groups removes the process only from that group.
+ * <p>
+ * Losing the connection to a ZooKeeper server does not affect groups, as
+ * long as the client reconnects before the session times out. Otherwise,
+ * the session expires and the process is removed from all groups.
+ *
+ * @author jop
+ */
+public class Session implements Watcher {
+	Connection zk;
+	ScheduledExecutorService executor;
+	private List<Endpoint> endpoints=new CopyOnWriteArrayList<Endpoint>();
+
+	/**
+	 * Connect to a local ZooKeeper server, with a session timeout of
+	 * 3 seconds.
+	 *
+	 * @param threads the number of threads used to run the protocol
+	 * @throws GroupException if a local ZooKeeper server cannot be used
+	 */
+	public Session(int threads) throws GroupException {
+		this("localhost", 3000, threads);
+	}
+
+	/**
+	 * Connect to ZooKeeper.
+	 *
+	 * @param connect a comma separated list of host:port pairs
+	 * @param timeout the session timeout in milliseconds
+	 * @param threads the number of threads used to run the protocol
+	 * @throws GroupException if ZooKeeper cannot be used
+	 */
+	public Session(String connect, int timeout, int threads) throws GroupException {
+		try {
+			this.zk=new Connection(connect, timeout, this);
+			this.executor=Executors.newScheduledThreadPool(threads);
+		} catch(Exception e) {
+			close();
+			throw new GroupException("cannot connect to ZooKeeper", e);
+		}
+	}
+
+	void add(Endpoint ep) {
+		endpoints.add(ep);
+	}
+
+	void remove(Endpoint ep) {
+		endpoints.remove(ep);
+	}
+
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getState()==KeeperState.Expired) {
+			Endpoint.logger.error("ZooKeeper session expired");
+			for(Endpoint ep: endpoints)
+				ep.wakeup(Endpoint.Event.TIMER);
+		}
+	}
+
+	/**
+	 * Disconnect from ZooKeeper. This removes the process from all groups
+	 * using this session.
+	 */
+	public void close() {
+		if (executor!=null)
+			executor.shutdown();
+		try {
+			if (zk!=null)
+				zk.close();
+		} catch (InterruptedException e) {
+			// don't care
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package groupz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+
+/**
+ * State transferred to new members, as numbered chunks in a directory of
+ * the view that end with an empty one. Chunks are written with several
+ * requests in flight, and read one at a time. Each reader acknowledges
+ * it in another directory of the view once done.
+ */
+class Snapshot {
+	static class Writer extends OutputStream {
+		private Endpoint ep;
+		private String path;
+		private byte[] chunk;
+		private int count, chunks, outstanding;
+		private boolean closed;
+		private IOException failure;
+		
+		public Writer(String path, Endpoint ep) {
+			this.ep=ep;
+			this.path=path;
+			this.chunk=new byte[ep.fragmentSize];
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (count==chunk.length)
+				send();
+			chunk[count++]=(byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len>0) {
+				if (count==chunk.length)
+					send();
+				int n=Math.min(len, chunk.length-count);
+				System.arraycopy(b, off, chunk, count, n);
+				count+=n;
+				off+=n;
+				len-=n;
+			}
+		}
+		
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed)
+				return;
+			if (count>0)
+				send();
+			// The empty chunk ends the state
+			send();
+			closed=true;
+			try {
+				while(outstanding>0)
+					wait();
+			} catch(InterruptedException e) {
+				throw new GroupException("interrupted while writing state", e);
+			}
+			if (failure!=null)
+				throw failure;
+		}
+		
+		private synchronized void send() throws IOException {
+			if (closed)
+				throw new IOException("state already written");
+			try {
+				while(outstanding>=ep.fetchWindow && failure==null)
+					wait();
+			} catch(InterruptedException e) {
+				throw new GroupException("interrupted while writing state", e);
+			}
+			if (failure!=null)
+				throw failure;
+			new Chunk(chunks++, Arrays.copyOf(chunk, count)).send();
+			outstanding++;
+			count=0;
+		}
+		
+		private synchronized void done(IOException e) {
+			if (e!=null && failure==null)
+				failure=e;
+			outstanding--;
+			notifyAll();
+		}
+		
+		// Chunks have fixed names, so a retry after connection loss
+		// is recognized
+		private class Chunk implements StringCallback {
+			private String name;
+			private byte[] value;
+			private boolean retry;
+			
+			public Chunk(int id, byte[] value) {
+				this.name=path+"/"+Messages.name(id);
+				this.value=value;
+			}
+			
+			public void send() {
+				ep.zk.create(name, value, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, null);
+			}
+			
+			public void processResult(int rc, String path, Object ctx, String name) {
+				if (rc==Code.CONNECTIONLOSS.intValue()) {
+					retry=true;
+					send();
+				} else if (rc==Code.OK.intValue() || (retry && rc==Code.NODEEXISTS.intValue()))
+					done(null);
+				else
+					done(new GroupException("cannot write state", KeeperException.create(Code.get(rc), path)));
+			}
+		}
+	}
+	
+	static class Reader extends InputStream implements Watcher {
+		private Endpoint ep;
+		private String path, donor, ack;
+		private byte[] chunk=new byte[0];
+		private int position, next;
+		private boolean ended, changed, closed;
+		
+		/**
+		 * Read state written by some process, which is watched such that
+		 * reading fails if it is gone before writing all of it. Closing
+		 * acknowledges it, such that it can be removed.
+		 */
+		public Reader(String path, String donor, String ack, Endpoint ep) {
+			this.ep=ep;
+			this.path=path;
+			this.donor=donor;
+			this.ack=ack;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			try {
+				ep.zk.create(ack, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch(KeeperException.NodeExistsException e) {
+				// a previous attempt succeeded
+			} catch(KeeperException e) {
+				throw new GroupException("cannot acknowledge state", e);
+			} catch(InterruptedException e) {
+				throw new GroupException("interrupted while acknowledging state", e);
+			}
+			closed=true;
+		}
+		
+		@Override
+		public synchronized void process(WatchedEvent event) {
+			changed=true;
+			notifyAll();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return chunk[position++]&0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n=Math.min(len, chunk.length-position);
+			System.arraycopy(chunk, position, b, off, n);
+			position+=n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return chunk.length-position;
+		}
+		
+		private boolean fill() throws IOException {
+			try {
+				while(position==chunk.length && !ended) {
+					String name=path+"/"+Messages.name(next);
+					synchronized (this) {
+						changed=false;
+					}
+					if (ep.zk.exists(name, this)==null) {
+						if (ep.zk.exists(donor, this)==null && ep.zk.exists(name, false)==null)
+							throw new GroupException("state donor failed", null);
+						synchronized (this) {
+							while(!changed)
+								wait();
+						}
+						continue;
+					}
+					chunk=ep.zk.getData(name, false, null);
+					position=0;
+					next++;
+					ended=chunk.length==0;
+				}
+				return !ended;
+			} catch(KeeperException e) {
+				throw new GroupException("cannot read state", e);
+			} catch(InterruptedException e) {
+				throw new GroupException("interrupted while reading state", e);
+			}
+		}
+	}
+}
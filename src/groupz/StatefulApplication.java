@@ -0,0 +1,54 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package groupz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Application callbacks that also transfer state to processes joining the
+ * group. When a view adds new members, one of the members that was already
+ * in the previous view writes its state right after installing the view,
+ * and new members read it right after installing it, before any message.
+ * The state goes through ZooKeeper in chunks, apart from messages, and
+ * is removed once all new members have read it, or with the following
+ * view if one of them fails first. All members of the group should
+ * implement this interface.
+ * 
+ * @author jop
+ */
+public interface StatefulApplication extends Application {
+	/**
+	 * Write the state, as of all messages delivered so far. No messages
+	 * are delivered until this returns.
+	 * @param out where to write the state, closed afterwards
+	 * @throws IOException if the state cannot be written, which removes
+	 * the process from the group
+	 */
+	public void getState(OutputStream out) throws IOException;
+	
+	/**
+	 * Read the state of the group, replacing any local state. No messages
+	 * are delivered until this returns.
+	 * @param in the state, as written by some other member
+	 * @throws IOException if the state cannot be read, which removes the
+	 * process from the group
+	 */
+	public void setState(InputStream in) throws IOException;
+}
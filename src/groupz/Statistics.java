@@ -0,0 +1,162 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package groupz;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters updated by an end-point.
+ */
+class Statistics implements Metrics {
+	final LongAdder sent=new LongAdder(), sentBytes=new LongAdder();
+	final LongAdder delivered=new LongAdder(), deliveredBytes=new LongAdder();
+	final LongAdder missed=new LongAdder();
+	final LongAdder rounds=new LongAdder(), operations=new LongAdder();
+	final Histogram sendLatency=new Histogram(), deliveryLatency=new Histogram();
+	
+	private volatile int deliveryLag, stabilityLag;
+	
+	private Endpoint.State state=Endpoint.State.CONNECTED;
+	private int vid;
+	private long since=System.currentTimeMillis(), blocking, blockedTime, changing;
+	private long changes, lastChange;
+	
+	synchronized void enter(Endpoint.State next, int vid) {
+		long now=System.currentTimeMillis();
+		if (state==Endpoint.State.BLOCKING)
+			blocking+=now-since;
+		else if (state==Endpoint.State.BLOCKED)
+			blockedTime+=now-since;
+		
+		if (next==Endpoint.State.BLOCKING)
+			changing=now;
+		else if (next==Endpoint.State.JOINED) {
+			if (changing>0)
+				lastChange=now-changing;
+			changing=0;
+			changes++;
+		}
+		state=next;
+		this.vid=vid;
+		since=now;
+	}
+	
+	void lag(int delivery, int stability) {
+		deliveryLag=delivery;
+		stabilityLag=stability;
+	}
+
+	public synchronized String getState() {
+		return state.toString();
+	}
+	
+	public synchronized int getViewId() {
+		return vid;
+	}
+	
+	public long getMessagesSent() {
+		return sent.sum();
+	}
+	
+	public long getBytesSent() {
+		return sentBytes.sum();
+	}
+	
+	public long getMessagesDelivered() {
+		return delivered.sum();
+	}
+	
+	public long getBytesDelivered() {
+		return deliveredBytes.sum();
+	}
+	
+	public long getBatchesMissed() {
+		return missed.sum();
+	}
+	
+	public int getDeliveryLag() {
+		return deliveryLag;
+	}
+	
+	public int getStabilityLag() {
+		return stabilityLag;
+	}
+	
+	public synchronized long getTimeBlocking() {
+		return blocking+(state==Endpoint.State.BLOCKING?System.currentTimeMillis()-since:0);
+	}
+	
+	public synchronized long getTimeBlocked() {
+		return blockedTime+(state==Endpoint.State.BLOCKED?System.currentTimeMillis()-since:0);
+	}
+	
+	public synchronized long getViewChanges() {
+		return changes;
+	}
+	
+	public synchronized long getLastViewChangeTime() {
+		return lastChange;
+	}
+	
+	public long getRounds() {
+		return rounds.sum();
+	}
+	
+	public double getOperationsPerRound() {
+		long n=rounds.sum();
+		return n>0?(double) operations.sum()/n:0;
+	}
+	
+	public double getSendLatencyMean() {
+		return sendLatency.mean();
+	}
+	
+	public long getSendLatency99() {
+		return sendLatency.percentile(0.99);
+	}
+	
+	public long getSendLatencyMax() {
+		return sendLatency.max();
+	}
+	
+	public double getDeliveryLatencyMean() {
+		return deliveryLatency.mean();
+	}
+	
+	public long getDeliveryLatency99() {
+		return deliveryLatency.percentile(0.99);
+	}
+	
+	public long getDeliveryLatencyMax() {
+		return deliveryLatency.max();
+	}
+	
+	public synchronized void reset() {
+		sent.reset();
+		sentBytes.reset();
+		delivered.reset();
+		deliveredBytes.reset();
+		missed.reset();
+		rounds.reset();
+		operations.reset();
+		sendLatency.reset();
+		deliveryLatency.reset();
+		blocking=blockedTime=0;
+		changes=lastChange=0;
+		since=System.currentTimeMillis();
+	}
+}
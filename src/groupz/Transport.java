@@ -0,0 +1,456 @@
+/*
+   Copyright 2010 José Orlando Pereira <jop@di.uminho.pt>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package groupz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Direct connections among members, used to disseminate message payloads
+ * without going through ZooKeeper. A batch is pushed to all members and
+ * only once all of them have it, a short token is ordered in ZooKeeper.
+ * All connections are handled by a single thread with a selector, and
+ * the resulting futures complete in that thread.
+ */
+class Transport implements Runnable {
+	private static final int DATA=1, ACK=2;
+	// Bounds on the length of a frame, after the length itself
+	private static final int HEADER=13, MAX_FRAME=64*1024*1024;
+
+	private Endpoint ep;
+	private long timeout;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean closed;
+	private String address;
+
+	// Published addresses of members, or null for those without one
+	private Map<String,InetSocketAddress> addresses=new ConcurrentHashMap<String, InetSocketAddress>();
+	// Run by the selector thread
+	private Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+
+	// The following are only used by the selector thread
+	private Map<String,Link> links=new HashMap<String, Link>();
+	private Map<Long,Push> pushing=new LinkedHashMap<Long, Push>();
+	private long pushes;
+
+	// Batches received from each sender, by view
+	private TreeMap<Integer,Map<String,byte[]>> inbox=new TreeMap<Integer, Map<String,byte[]>>();
+
+	public Transport(InetSocketAddress bind, long timeout, Endpoint ep) throws IOException {
+		this.ep=ep;
+		this.timeout=timeout;
+		selector=Selector.open();
+		try {
+			server=ServerSocketChannel.open();
+			server.bind(bind);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch(IOException e) {
+			selector.close();
+			if (server!=null)
+				server.close();
+			throw e;
+		}
+		InetSocketAddress local=(InetSocketAddress) server.getLocalAddress();
+		address=local.getAddress().getHostAddress()+":"+local.getPort();
+		thread=new Thread(this, "groupz-transport-"+local.getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the address where this process is reached, as published
+	 * in ZooKeeper.
+	 */
+	public byte[] getAddress() {
+		return address.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Look up the addresses published by members not yet known.
+	 *
+	 * @param dir the ZooKeeper directory of processes
+	 * @param members process identifiers
+	 */
+	public void resolve(String dir, String[] members) throws KeeperException, InterruptedException {
+		for(String pid: members) {
+			if (addresses.containsKey(pid))
+				continue;
+			try {
+				String value=new String(ep.zk.getData(dir+"/"+pid, false, null), StandardCharsets.UTF_8);
+				int colon=value.lastIndexOf(':');
+				if (colon>0)
+					addresses.put(pid, new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon+1))));
+			} catch(KeeperException.NoNodeException e) {
+				// gone, will not be in the next view
+			}
+		}
+	}
+
+	/**
+	 * Check whether all processes can be reached directly.
+	 */
+	public boolean reaches(Collection<String> members) {
+		for(String pid: members)
+			if (!addresses.containsKey(pid))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Push a batch to other members. The result completes once all of
+	 * them have confirmed it, or exceptionally after a connection fails
+	 * or the timeout expires.
+	 */
+	public CompletableFuture<Void> push(final int vid, final Collection<String> members, byte[] batch) {
+		final CompletableFuture<Void> result=new CompletableFuture<Void>();
+		final ByteBuffer frame=ByteBuffer.allocate(4+HEADER+batch.length);
+		frame.putInt(HEADER+batch.length).put((byte) DATA).putLong(0).putInt(vid).put(batch).flip();
+		Start start=new Start(result) {
+			public void run() {
+				Push push=new Push(result);
+				frame.putLong(5, push.id);
+				for(String pid: members) {
+					Link link=connect(pid);
+					if (link==null) {
+						push.fail(new IOException("cannot reach "+pid));
+						return;
+					}
+					link.send(frame.duplicate());
+					link.waiting.add(push.id);
+					push.remaining++;
+				}
+				push.check();
+			}
+		};
+		run(start);
+		// Not to be run anymore, if the selector thread is gone
+		if (closed && tasks.remove(start))
+			result.completeExceptionally(new IOException("transport closed"));
+		return result;
+	}
+	
+	// Starts a push in the selector thread
+	private static abstract class Start implements Runnable {
+		protected CompletableFuture<Void> result;
+		
+		public Start(CompletableFuture<Void> result) {
+			this.result=result;
+		}
+	}
+
+	/**
+	 * Keep a batch, as if received from a sender.
+	 */
+	public void put(int vid, byte[] batch) {
+		ByteBuffer buf=ByteBuffer.wrap(batch);
+		byte[] id=new byte[buf.getShort()];
+		buf.get(id);
+		String key=new String(id, StandardCharsets.UTF_8)+"/"+buf.getInt();
+		synchronized (inbox) {
+			Map<String,byte[]> batches=inbox.get(vid);
+			if (batches==null) {
+				batches=new HashMap<String, byte[]>();
+				inbox.put(vid, batches);
+			}
+			batches.put(key, batch);
+		}
+	}
+
+	/**
+	 * Get a batch received from a sender, which is then forgotten.
+	 *
+	 * @return the batch, or null if not received
+	 */
+	public byte[] take(int vid, String sender, int number) {
+		synchronized (inbox) {
+			Map<String,byte[]> batches=inbox.get(vid);
+			return batches!=null?batches.remove(sender+"/"+number):null;
+		}
+	}
+
+	/**
+	 * Forget batches from views before the given one, including those
+	 * that were also ordered through ZooKeeper.
+	 */
+	public void discard(int vid) {
+		synchronized (inbox) {
+			inbox.headMap(vid).clear();
+		}
+	}
+
+	public void close() {
+		closed=true;
+		selector.wakeup();
+	}
+
+	private void run(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			while(!closed) {
+				selector.select(timeout);
+				Runnable task;
+				while((task=tasks.poll())!=null)
+					try {
+						task.run();
+					} catch(RuntimeException e) {
+						Endpoint.logger.error("direct transport task failed", e);
+						if (task instanceof Start)
+							((Start) task).result.completeExceptionally(e);
+					}
+				Iterator<SelectionKey> i=selector.selectedKeys().iterator();
+				while(i.hasNext()) {
+					SelectionKey key=i.next();
+					i.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						SocketChannel channel=server.accept();
+						if (channel!=null) {
+							channel.configureBlocking(false);
+							new Link(null, channel);
+						}
+						continue;
+					}
+					Link link=(Link) key.attachment();
+					try {
+						if (key.isConnectable() && link.channel.finishConnect())
+							link.interest();
+						if (key.isValid() && key.isReadable())
+							link.read();
+						if (key.isValid() && key.isWritable())
+							link.write();
+					} catch(IOException e) {
+						link.fail(e);
+					} catch(RuntimeException e) {
+						// Such as a key cancelled meanwhile
+						Endpoint.logger.error("direct connection failed", e);
+						link.fail(new IOException(e));
+					}
+				}
+				expire();
+			}
+		} catch(IOException e) {
+			Endpoint.logger.error("direct transport failed", e);
+		} catch(RuntimeException e) {
+			Endpoint.logger.error("direct transport failed", e);
+		} finally {
+			closed=true;
+			Runnable task;
+			while((task=tasks.poll())!=null)
+				if (task instanceof Start)
+					((Start) task).result.completeExceptionally(new IOException("transport closed"));
+			for(Link link: new ArrayList<Link>(links.values()))
+				link.fail(new IOException("transport closed"));
+			for(Push push: new ArrayList<Push>(pushing.values()))
+				push.fail(new IOException("transport closed"));
+			for(SelectionKey key: selector.keys())
+				try {
+					key.channel().close();
+				} catch(IOException e) {
+					// don't care
+				}
+			try {
+				selector.close();
+			} catch(IOException e) {
+				// don't care
+			}
+		}
+	}
+
+	// Pushes are kept in the order they started, so only the oldest
+	// are checked
+	private void expire() {
+		long now=System.currentTimeMillis();
+		Iterator<Push> i=pushing.values().iterator();
+		while(i.hasNext()) {
+			Push push=i.next();
+			if (push.deadline>now)
+				break;
+			i.remove();
+			push.result.completeExceptionally(new IOException("timed out"));
+		}
+	}
+
+	private Link connect(String pid) {
+		Link link=links.get(pid);
+		if (link!=null)
+			return link;
+		InetSocketAddress target=addresses.get(pid);
+		if (target==null)
+			return null;
+		try {
+			SocketChannel channel=SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(target);
+			link=new Link(pid, channel);
+			links.put(pid, link);
+			return link;
+		} catch(IOException e) {
+			return null;
+		}
+	}
+
+	// Batches being pushed, waiting for confirmations
+	private class Push {
+		private long id=pushes++, deadline=System.currentTimeMillis()+timeout;
+		private int remaining;
+		private CompletableFuture<Void> result;
+
+		public Push(CompletableFuture<Void> result) {
+			this.result=result;
+			pushing.put(id, this);
+		}
+
+		public void check() {
+			if (remaining==0 && pushing.remove(id)!=null)
+				result.complete(null);
+		}
+
+		public void fail(IOException e) {
+			if (pushing.remove(id)!=null)
+				result.completeExceptionally(e);
+		}
+	}
+
+	// A connection to another member, made by either of them, that
+	// carries frames with a length and a type
+	private class Link {
+		private String pid;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer in=ByteBuffer.allocate(64*1024);
+		private Deque<ByteBuffer> out=new ArrayDeque<ByteBuffer>();
+		private Set<Long> waiting=new HashSet<Long>();
+
+		public Link(String pid, SocketChannel channel) throws IOException {
+			this.pid=pid;
+			this.channel=channel;
+			key=channel.register(selector, channel.isConnectionPending()?SelectionKey.OP_CONNECT:SelectionKey.OP_READ, this);
+		}
+
+		public void send(ByteBuffer frame) {
+			out.add(frame);
+			if (!channel.isConnectionPending())
+				interest();
+		}
+
+		private void interest() {
+			key.interestOps(SelectionKey.OP_READ|(out.isEmpty()?0:SelectionKey.OP_WRITE));
+		}
+
+		public void write() throws IOException {
+			while(!out.isEmpty()) {
+				channel.write(out.peek());
+				if (out.peek().hasRemaining())
+					break;
+				out.remove();
+			}
+			interest();
+		}
+
+		public void read() throws IOException {
+			if (channel.read(in)<0)
+				throw new IOException("connection closed");
+			in.flip();
+			while(in.remaining()>=4 && in.remaining()>=4+length()) {
+				int len=in.getInt();
+				int type=in.get();
+				long id=in.getLong();
+				if (type==DATA) {
+					if (len<HEADER)
+						throw new IOException("truncated frame");
+					int vid=in.getInt();
+					byte[] batch=new byte[len-HEADER];
+					in.get(batch);
+					put(vid, batch);
+					ByteBuffer ack=ByteBuffer.allocate(13);
+					ack.putInt(9).put((byte) ACK).putLong(id).flip();
+					send(ack);
+				} else if (type==ACK) {
+					Push push=pushing.get(id);
+					if (waiting.remove(id) && push!=null) {
+						push.remaining--;
+						push.check();
+					}
+				} else
+					throw new IOException("unknown frame");
+			}
+			if (in.remaining()>=4 && length()+4>in.capacity()) {
+				ByteBuffer larger=ByteBuffer.allocate(length()+4);
+				larger.put(in);
+				in=larger;
+			} else
+				in.compact();
+		}
+
+		// Length of the next frame, which must at least hold its type and id
+		private int length() throws IOException {
+			int len=in.getInt(in.position());
+			if (len<9 || len>MAX_FRAME)
+				throw new IOException("bad frame length "+len);
+			return len;
+		}
+
+		public void fail(IOException e) {
+			key.cancel();
+			try {
+				channel.close();
+			} catch(IOException ce) {
+				// don't care
+			}
+			if (pid!=null && links.get(pid)==this)
+				links.remove(pid);
+			for(long id: waiting) {
+				Push push=pushing.get(id);
+				if (push!=null)
+					push.fail(e);
+			}
+			waiting.clear();
+		}
+	}
+}
@@ -16,38 +16,79 @@
 
 package groupz;
 
-import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 
+/**
+ * Membership of a view. It is stored either in full or as the processes
+ * that left and joined since the previous view, whichever is smaller, but
+ * in full every few views such that a joining process reads only a few.
+ * Process identifiers generated by ZooKeeper are stored as numbers.
+ */
 class View implements Watcher {
+	// Created along with the view
+	static final String[] DIRECTORIES={ "active", "blocked", "messages", "fifo", "state", "taken" };
+	
+	private static final int FULL=0, DELTA=1, NUMERIC=2;
+	private static final int SNAPSHOT=16;
+	private static final Pattern PID=Pattern.compile("\\d{10}");
+	
 	private Endpoint ep;
 	private String path;
+	private int vid;
+	private View previous;
 	
-	private List<String> data;
+	private String[] members;
+	private Map<String,Integer> index;
 	
-	public View(String path, Endpoint ep) throws KeeperException, InterruptedException {
+	/**
+	 * Watch a view that might not have been decided yet.
+	 * 
+	 * @param previous the view before this one, if known
+	 */
+	public View(String path, View previous, Endpoint ep) throws KeeperException, InterruptedException {
+		this(path, previous, ep, true);
+	}
+	
+	private View(String path, View previous, Endpoint ep, boolean watch) throws KeeperException, InterruptedException {
 		this.ep=ep;
 		this.path=path;
+		this.vid=Integer.parseInt(path.substring(path.lastIndexOf('/')+1));
+		this.previous=previous;
 		
-		if (ep.zk.exists(path, this)!=null)
+		if (!watch || ep.zk.exists(path, this)!=null)
 			update();
 	}
 
+	// The view is created with all its directories in a single request,
+	// so that members need not create them
 	public void propose(List<String> mine) throws KeeperException, InterruptedException {
-		String value=null;
-		for(String v: mine)
-			if (value==null)
-				value=v;
-			else
-				value+=","+v;
+		String[] proposal=mine.toArray(new String[mine.size()]);
+		List<Op> ops=new ArrayList<Op>();
+		ops.add(Op.create(path, encode(proposal), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+		for(String dir: DIRECTORIES)
+			ops.add(Op.create(path+"/"+dir, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+		for(String dir: Messages.directories(ep.shards))
+			ops.add(Op.create(path+"/"+dir, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+		for(String member: proposal)
+			ops.add(Op.create(Messages.stream(path, member), new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
 		try {
-			ep.zk.create(path, value.getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			ep.zk.multi(ops);
+			set(proposal);
+			return;
 		} catch (KeeperException.NodeExistsException e) {
 			// not mine...
 		}
@@ -58,32 +99,163 @@ class View implements Watcher {
 		synchronized (this) {
 			try {
 				byte[] value=ep.zk.getData(path, this, null);
-				String[] procs = new String(value).split(",");
-				data = Arrays.asList(procs);
+				set(decode(ByteBuffer.wrap(value)));
 			} catch (KeeperException.NoNodeException e) {
 				// not yet
 			}
 		}
 	}
 	
-	public synchronized List<String> getProcesses() throws KeeperException, InterruptedException {
-		if (data==null)
+	private synchronized void set(String[] members) {
+		this.members=members;
+		this.index=new HashMap<String, Integer>(members.length*2);
+		for(int i=0; i<members.length; i++)
+			index.put(members[i], i);
+		// Not needed anymore, let it be collected
+		previous=null;
+	}
+	
+	/**
+	 * Get members, in the order in which they were proposed. The array is
+	 * shared and must not be modified.
+	 */
+	public synchronized String[] getProcesses() throws KeeperException, InterruptedException {
+		if (members==null)
+			update();
+		return members;
+	}
+	
+	public synchronized boolean contains(String process) throws KeeperException, InterruptedException {
+		if (members==null)
 			update();
-		return data;
+		return index.containsKey(process);
 	}
 	
 	public synchronized boolean isDecided() throws KeeperException, InterruptedException {
-		if (data==null)
+		if (members==null)
 			update();
-		return data!=null;
+		return members!=null;
 	}
 
 	@Override
 	public void process(WatchedEvent event) {
-		ep.wakeup();
+		ep.wakeup(Endpoint.Event.VIEW);
 	}
 
 	public String toString() {
-		return "["+path+": "+data+"]";
+		return "["+path+": "+(members==null?null:String.join(",", members))+"]";
+	}
+	
+	/* -- Encoding */
+	
+	private byte[] encode(String[] proposal) throws KeeperException, InterruptedException {
+		int format=NUMERIC;
+		for(String p: proposal)
+			if (!PID.matcher(p).matches())
+				format=0;
+		
+		ByteArrayOutputStream full=new ByteArrayOutputStream();
+		full.write(format|FULL);
+		writeVarLong(full, proposal.length);
+		for(String p: proposal)
+			writeMember(full, p, format);
+		if (vid%SNAPSHOT==0)
+			return full.toByteArray();
+
+		// Processes from the previous view that are a prefix of the new
+		// one, in the same order, are not listed
+		String[] old=previous().getProcesses();
+		ByteArrayOutputStream left=new ByteArrayOutputStream();
+		int kept=0, count=0, last=-1;
+		for(int i=0; i<old.length; i++)
+			if (kept<proposal.length && proposal[kept].equals(old[i]))
+				kept++;
+			else {
+				writeVarLong(left, i-last-1);
+				last=i;
+				count++;
+			}
+
+		ByteArrayOutputStream delta=new ByteArrayOutputStream();
+		delta.write(format|DELTA);
+		writeVarLong(delta, count);
+		byte[] gaps=left.toByteArray();
+		delta.write(gaps, 0, gaps.length);
+		writeVarLong(delta, proposal.length-kept);
+		for(int i=kept; i<proposal.length; i++)
+			writeMember(delta, proposal[i], format);
+		
+		return delta.size()<full.size()?delta.toByteArray():full.toByteArray();
+	}
+	
+	private String[] decode(ByteBuffer value) throws KeeperException, InterruptedException {
+		if (!value.hasRemaining())
+			return new String[0];
+		int format=value.get();
+		if ((format&DELTA)==0) {
+			String[] result=new String[(int) readVarLong(value)];
+			for(int i=0; i<result.length; i++)
+				result[i]=readMember(value, format);
+			return result;
+		}
+		
+		String[] old=previous().getProcesses();
+		boolean[] gone=new boolean[old.length];
+		int left=(int) readVarLong(value);
+		for(int i=0, last=-1; i<left; i++) {
+			last+=readVarLong(value)+1;
+			gone[last]=true;
+		}
+		int joined=(int) readVarLong(value);
+		String[] result=new String[old.length-left+joined];
+		int j=0;
+		for(int i=0; i<old.length; i++)
+			if (!gone[i])
+				result[j++]=old[i];
+		for(int i=0; i<joined; i++)
+			result[j++]=readMember(value, format);
+		return result;
+	}
+	
+	private View previous() throws KeeperException, InterruptedException {
+		if (previous==null)
+			previous=new View(path.substring(0, path.lastIndexOf('/')+1)+(vid-1), null, ep, false);
+		return previous;
+	}
+	
+	private static void writeMember(ByteArrayOutputStream out, String p, int format) {
+		if ((format&NUMERIC)!=0) {
+			writeVarLong(out, Long.parseLong(p));
+			return;
+		}
+		byte[] bytes=p.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+	
+	private static String readMember(ByteBuffer in, int format) {
+		if ((format&NUMERIC)!=0)
+			return String.format("%010d", readVarLong(in));
+		byte[] bytes=new byte[(int) readVarLong(in)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while((value&~0x7FL)!=0) {
+			out.write((int) (value&0x7F)|0x80);
+			value>>>=7;
+		}
+		out.write((int) value);
+	}
+	
+	private static long readVarLong(ByteBuffer in) {
+		long value=0;
+		for(int shift=0; ; shift+=7) {
+			byte b=in.get();
+			value|=(long) (b&0x7F)<<shift;
+			if (b>=0)
+				return value;
+		}
 	}
 }